@@ -0,0 +1,185 @@
+package com.diamondq.maven.activator.benchmarks;
+
+import com.diamondq.maven.activator.ActivatorLogger;
+import com.diamondq.maven.activator.CommonProfileSelector;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.building.ModelProblemCollector;
+import org.apache.maven.model.path.DefaultPathTranslator;
+import org.apache.maven.model.profile.ProfileActivationContext;
+import org.apache.maven.model.profile.activation.ProfileActivator;
+import org.apache.maven.model.profile.activation.PropertyProfileActivator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole reactor build worth of profile selection (one select() per module). Each operation uses a new set
+ * of contexts, just like Maven does for each build.
+ * <p>
+ * Run with {@code java -jar target/benchmarks.jar -prof gc -rf json -rff results.json} to get the allocation rates
+ * along with the throughput, as JSON that can be compared between releases.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SelectBenchmark {
+
+    /**
+     * The number of context sets that the operations rotate through
+     */
+    private static final int CONTEXT_SETS = 8;
+
+    @Param({"50", "200"})
+    public int moduleCount;
+
+    @Param({"10"})
+    public int profilesPerModule;
+
+    @Param({"1", "3"})
+    public int scriptDepth;
+
+    @Param({"16"})
+    public int profilesDirSize;
+
+    @Param({"3"})
+    public int parentDepth;
+
+    private SyntheticReactor reactor;
+
+    /**
+     * The selector that is kept between operations
+     */
+    private CommonProfileSelector selector;
+
+    /**
+     * Context sets with the same properties
+     */
+    private ProfileActivationContext[][] sameContexts;
+
+    /**
+     * Context sets where an unrelated property always changes, and a property used by the scripts sometimes changes
+     */
+    private ProfileActivationContext[][] changingContexts;
+
+    private int operation;
+
+    private static final ModelProblemCollector IGNORE_PROBLEMS = (req) -> {
+    };
+
+    private static final ActivatorLogger NO_LOGGER = new ActivatorLogger() {
+        @Override
+        public void debug(String pMsg) {
+        }
+
+        @Override
+        public void error(String pMsg, Throwable pThrowable) {
+        }
+
+        @Override
+        public void info(String pMsg) {
+        }
+
+        @Override
+        public void warn(String pMsg) {
+        }
+
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        reactor = new SyntheticReactor(moduleCount, profilesPerModule, scriptDepth, profilesDirSize, parentDepth, 42L);
+        sameContexts = new ProfileActivationContext[CONTEXT_SETS][];
+        changingContexts = new ProfileActivationContext[CONTEXT_SETS][];
+        for (int i = 0; i < CONTEXT_SETS; i++) {
+            sameContexts[i] = reactor.newContexts(Collections.singletonMap("bench.flag", "true"));
+            Map<String, String> userProperties = new HashMap<>();
+            userProperties.put("bench.unrelated", Integer.toString(i));
+            if (i % 4 == 0) userProperties.put("bench.flag", "true");
+            changingContexts[i] = reactor.newContexts(userProperties);
+        }
+        selector = newSelector();
+        build(selector, sameContexts[0], null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reactor.delete();
+    }
+
+    private static CommonProfileSelector newSelector() {
+        List<ProfileActivator> activators = Collections.singletonList(new PropertyProfileActivator());
+        return new CommonProfileSelector(activators, NO_LOGGER, new DefaultPathTranslator());
+    }
+
+    private void build(CommonProfileSelector pSelector, ProfileActivationContext[] pContexts, Blackhole pBlackhole) {
+        pSelector.startSession();
+        for (int m = 0; m < pContexts.length; m++) {
+            List<Profile> active = pSelector.select(reactor.getProfiles(m), pContexts[m], IGNORE_PROBLEMS);
+            if (pBlackhole != null) pBlackhole.consume(active);
+        }
+        pSelector.endSession();
+    }
+
+    private ProfileActivationContext[] next(ProfileActivationContext[][] pSets) {
+        operation = (operation + 1) % CONTEXT_SETS;
+        return pSets[operation];
+    }
+
+    /**
+     * Every script is compiled and evaluated from scratch
+     */
+    @Benchmark
+    public void coldCache(Blackhole pBlackhole) {
+        build(newSelector(), next(sameContexts), pBlackhole);
+    }
+
+    /**
+     * Nothing has changed since the last build
+     */
+    @Benchmark
+    public void warmCache(Blackhole pBlackhole) {
+        build(selector, next(sameContexts), pBlackhole);
+    }
+
+    /**
+     * A file used by the scripts of half of the modules is created or deleted before each build
+     */
+    @Benchmark
+    public void invalidatedCache(Blackhole pBlackhole) throws IOException {
+        reactor.toggleMarker();
+        build(selector, next(sameContexts), pBlackhole);
+    }
+
+    /**
+     * Every build has different user properties, but only some of the changes matter to the scripts
+     */
+    @Benchmark
+    public void changingContexts(Blackhole pBlackhole) {
+        build(selector, next(changingContexts), pBlackhole);
+    }
+}
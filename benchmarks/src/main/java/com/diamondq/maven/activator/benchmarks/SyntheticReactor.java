@@ -0,0 +1,210 @@
+package com.diamondq.maven.activator.benchmarks;
+
+import org.apache.maven.model.Activation;
+import org.apache.maven.model.ActivationProperty;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.profile.DefaultProfileActivationContext;
+import org.apache.maven.model.profile.ProfileActivationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A generated reactor on a temporary file system. The modules are nested parentDepth directories deep (each level has a
+ * parentProfiles directory), and each module has a profiles directory with the requested number of markers. Every
+ * module gets its own copies of the same randomly generated [DIAMONDQ] profiles, like a parent pom's profiles that are
+ * inherited by each module.
+ */
+public final class SyntheticReactor {
+
+    /**
+     * The marker that {@link #toggleMarker()} creates and deletes
+     */
+    static final String TOGGLE_MARKER = "toggle";
+
+    private final File root;
+    private final File[] moduleDirs;
+    private final List<List<Profile>> moduleProfiles = new ArrayList<>();
+    private final Properties systemProperties;
+    private boolean toggled;
+
+    /**
+     * Generates the reactor
+     *
+     * @param pModuleCount the number of modules
+     * @param pProfilesPerModule the number of [DIAMONDQ] profiles in each module
+     * @param pScriptDepth the depth of the generated scripts (0 is a single check)
+     * @param pProfilesDirSize the number of markers in each profiles directory
+     * @param pParentDepth the number of directories between the root and the modules
+     * @param pSeed the random seed (so the same parameters always give the same reactor)
+     * @throws IOException if the files can't be created
+     */
+    public SyntheticReactor(int pModuleCount, int pProfilesPerModule, int pScriptDepth, int pProfilesDirSize,
+                            int pParentDepth, long pSeed) throws IOException {
+        Random random = new Random(pSeed);
+        root = Files.createTempDirectory("diamondq-bench").toFile();
+
+        /* The parent directories, each with a shared parent profile */
+
+        File parent = root;
+        for (int level = 0; level < pParentDepth; level++) {
+            parent = new File(parent, "level" + level);
+            touch(new File(parent, "parentProfiles/shared-" + level));
+        }
+
+        /* The modules */
+
+        moduleDirs = new File[pModuleCount];
+        for (int m = 0; m < pModuleCount; m++) {
+            File moduleDir = new File(parent, "module-" + m);
+            File profilesDir = new File(moduleDir, "profiles");
+            if (!profilesDir.mkdirs()) throw new IOException("Unable to create " + profilesDir);
+            touch(new File(profilesDir, "type-java-" + (8 + random.nextInt(14))));
+            for (int i = 1; i < pProfilesDirSize; i++)
+                touch(new File(profilesDir, (i % 2 == 0 ? "type-svc-" : "marker-") + random.nextInt(
+                        pProfilesDirSize * 2)));
+            moduleDirs[m] = moduleDir;
+        }
+
+        /* The profiles */
+
+        String[] scripts = new String[pProfilesPerModule];
+        for (int i = 0; i < pProfilesPerModule; i++)
+            scripts[i] = generate(random, pScriptDepth, pProfilesDirSize, pParentDepth);
+        for (int m = 0; m < pModuleCount; m++) {
+            List<Profile> profiles = new ArrayList<>();
+            for (int i = 0; i < pProfilesPerModule; i++)
+                profiles.add(profile("bench-" + i, scripts[i]));
+            moduleProfiles.add(profiles);
+        }
+
+        systemProperties = new Properties();
+        systemProperties.putAll(System.getProperties());
+        for (Map.Entry<String, String> env : System.getenv().entrySet())
+            systemProperties.put("env." + env.getKey(), env.getValue());
+    }
+
+    private static String generate(Random pRandom, int pDepth, int pProfilesDirSize, int pParentDepth) {
+        if (pDepth <= 0) {
+            int marker = pRandom.nextInt(pProfilesDirSize * 2);
+            switch (pRandom.nextInt(8)) {
+                case 0:
+                    return "file(profiles/marker-" + marker + ")";
+                case 1:
+                    return "missing(profiles/marker-" + marker + ")";
+                case 2:
+                    return "type(svc-" + marker + ")";
+                case 3:
+                    return "jdk(>=" + (8 + pRandom.nextInt(14)) + ")";
+                case 4:
+                    return "property(bench.flag)";
+                case 5:
+                    return "property(!bench.off)";
+                case 6:
+                    return "profile(shared-" + pRandom.nextInt(Math.max(1, pParentDepth)) + ")";
+                default:
+                    return "file(${basedir}/" + TOGGLE_MARKER + ")";
+            }
+        }
+        int choice = pRandom.nextInt(3);
+        if (choice == 2) return "not(" + generate(pRandom, pDepth - 1, pProfilesDirSize, pParentDepth) + ")";
+        StringBuilder sb = new StringBuilder(choice == 0 ? "or(" : "and(");
+        int children = 2 + pRandom.nextInt(2);
+        for (int i = 0; i < children; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(generate(pRandom, pDepth - 1, pProfilesDirSize, pParentDepth));
+        }
+        return sb.append(')').toString();
+    }
+
+    private static Profile profile(String pId, String pScript) {
+        Profile profile = new Profile();
+        profile.setId(pId);
+        Activation activation = new Activation();
+        ActivationProperty property = new ActivationProperty();
+        property.setName("[DIAMONDQ]");
+        property.setValue(pScript);
+        activation.setProperty(property);
+        profile.setActivation(activation);
+        return profile;
+    }
+
+    private static void touch(File pFile) throws IOException {
+        File parent = pFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Unable to create " + parent);
+        if (!pFile.exists()) Files.createFile(pFile.toPath());
+    }
+
+    public int getModuleCount() {
+        return moduleDirs.length;
+    }
+
+    public List<Profile> getProfiles(int pModule) {
+        return moduleProfiles.get(pModule);
+    }
+
+    /**
+     * Creates a new context for every module (like a new build)
+     *
+     * @param pUserProperties the user properties
+     * @return the contexts
+     */
+    public ProfileActivationContext[] newContexts(Map<String, String> pUserProperties) {
+        ProfileActivationContext[] contexts = new ProfileActivationContext[moduleDirs.length];
+        for (int m = 0; m < moduleDirs.length; m++) {
+            DefaultProfileActivationContext context = new DefaultProfileActivationContext();
+            context.setProjectDirectory(moduleDirs[m]);
+            context.setSystemProperties(systemProperties);
+            context.setUserProperties(new HashMap<>(pUserProperties));
+            context.setProjectProperties(new Properties());
+            contexts[m] = context;
+        }
+        return contexts;
+    }
+
+    /**
+     * Creates or deletes the toggle marker in every other module
+     *
+     * @throws IOException if the files can't be changed
+     */
+    public void toggleMarker() throws IOException {
+        toggled = !toggled;
+        for (int m = 0; m < moduleDirs.length; m += 2) {
+            File marker = new File(moduleDirs[m], TOGGLE_MARKER);
+            if (toggled) touch(marker);
+            else Files.deleteIfExists(marker.toPath());
+        }
+    }
+
+    /**
+     * Deletes the generated files
+     *
+     * @throws IOException if they can't be deleted
+     */
+    public void delete() throws IOException {
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttrs) throws IOException {
+                Files.delete(pFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path pDir, IOException pEx) throws IOException {
+                Files.delete(pDir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
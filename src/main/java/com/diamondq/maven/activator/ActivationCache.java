@@ -0,0 +1,381 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.profile.ProfileActivationContext;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the activation result of each [DIAMONDQ] profile per project directory. Since relative paths in the scripts
+ * are resolved against the project directory, the directory is part of the key rather than a dependency, and the
+ * results for one module survive while other modules are being evaluated.
+ * <p>
+ * Each result carries the ids (see {@link DependencyStore}) of the dependencies that were recorded while it was
+ * evaluated, so when a dependency fails only the results that depended on it are evicted. The properties that were
+ * read are checked separately, by comparing their values whenever the result is looked up.
+ * <p>
+ * The cache can be bounded (for hosts such as the Maven daemon or an IDE that keep the selector for hours): see
+ * {@link #trim(int, long)}. Each result remembers when it was last used, on a clock that the selector advances once per
+ * select() call, so a lookup doesn't need to read the time.
+ * <p>
+ * The cache is safe to use from multiple threads. Entries are immutable (other than the time they were last used) and
+ * are published through the concurrent maps.
+ */
+public class ActivationCache {
+
+    /**
+     * The cached results, keyed by project directory and then by profile id
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> results = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+
+    /**
+     * The current time (see {@link #setClock(long)})
+     */
+    private volatile long clock = System.nanoTime();
+
+    /**
+     * A cached result along with the script and the dependencies it was computed from
+     */
+    public static final class Entry {
+        public final boolean active;
+        /**
+         * The activation script (null if the profile isn't a [DIAMONDQ] profile). The result is only valid for the same
+         * script, since the pom may have been edited since it was cached.
+         */
+        final String script;
+        /**
+         * The properties that the result depends on, or null if there are none
+         */
+        final PropertyFingerprint properties;
+        final int[] dependencies;
+        /**
+         * The generation of the dependency store that the dependency ids belong to
+         */
+        final int generation;
+        /**
+         * The clock when the result was last used
+         */
+        volatile long lastUsed;
+
+        Entry(String pScript, PropertyFingerprint pProperties, boolean pActive, int[] pDependencies, int pGeneration) {
+            script = pScript;
+            properties = pProperties;
+            active = pActive;
+            dependencies = pDependencies;
+            generation = pGeneration;
+        }
+
+        /**
+         * Checks the properties that the result depends on against the context (of the same project)
+         *
+         * @param pContext the context
+         * @return true if the properties still have the same values
+         */
+        boolean matchesProperties(ProfileActivationContext pContext) {
+            return (properties == null) || properties.matches(pContext);
+        }
+
+        /**
+         * Returns true if the result read any of the properties
+         *
+         * @param pNames the property names
+         * @return true if it read one of them
+         */
+        boolean readsAny(Set<String> pNames) {
+            if (properties == null) return false;
+            for (String key : properties.keys)
+                if (pNames.contains(key)) return true;
+            for (String key : properties.projectKeys)
+                if (pNames.contains(key)) return true;
+            return false;
+        }
+
+        boolean dependsOn(BitSet pDependencyIds) {
+            for (int dependency : dependencies)
+                if (pDependencyIds.get(dependency)) return true;
+            return false;
+        }
+    }
+
+    private static String dirKey(File pProjectDir) {
+        return pProjectDir == null ? "" : pProjectDir.getPath();
+    }
+
+    /**
+     * Returns the cached result. The lookup isn't counted until the caller has checked the result against the context
+     * (see {@link #recordLookup(Entry)}).
+     *
+     * @param pProjectDir the project directory (may be null)
+     * @param pProfileId the profile id
+     * @return the entry or null if there is no cached result
+     */
+    public Entry get(File pProjectDir, String pProfileId) {
+        Map<String, Entry> dirResults = results.get(dirKey(pProjectDir));
+        return dirResults == null ? null : dirResults.get(pProfileId);
+    }
+
+    /**
+     * Counts a lookup as a hit or a miss, and marks a used result as recently used
+     *
+     * @param pEntry the result that was used, or null if there was no usable result
+     */
+    public void recordLookup(Entry pEntry) {
+        if (pEntry == null) misses.increment();
+        else {
+            hits.increment();
+            long now = clock;
+            if (pEntry.lastUsed != now) pEntry.lastUsed = now;
+        }
+    }
+
+    /**
+     * Stores a result
+     *
+     * @param pProjectDir the project directory (may be null)
+     * @param pProfileId the profile id
+     * @param pScript the activation script (may be null)
+     * @param pProperties the properties that the result depends on (may be null)
+     * @param pResult the result
+     * @param pDependencies the ids of the dependencies that the result was computed from
+     * @param pGeneration the generation of the dependency store that the ids belong to
+     * @return the new entry
+     */
+    public Entry put(File pProjectDir, String pProfileId, String pScript, PropertyFingerprint pProperties,
+                     boolean pResult, int[] pDependencies, int pGeneration) {
+        Entry entry = new Entry(pScript, pProperties, pResult, pDependencies, pGeneration);
+        put(dirKey(pProjectDir), pProfileId, entry);
+        return entry;
+    }
+
+    void put(String pDirKey, String pProfileId, Entry pEntry) {
+        pEntry.lastUsed = clock;
+        results.computeIfAbsent(pDirKey, (k) -> new ConcurrentHashMap<>()).put(pProfileId, pEntry);
+    }
+
+    /**
+     * Returns the cached results, keyed by project directory (an empty string for no directory) and then by profile id
+     */
+    Map<String, ? extends Map<String, Entry>> getResults() {
+        return results;
+    }
+
+    /**
+     * Removes a result, but only if it is still the given entry
+     *
+     * @param pProjectDir the project directory (may be null)
+     * @param pProfileId the profile id
+     * @param pEntry the entry
+     */
+    public void remove(File pProjectDir, String pProfileId, Entry pEntry) {
+        Map<String, Entry> dirResults = results.get(dirKey(pProjectDir));
+        if (dirResults != null) dirResults.remove(pProfileId, pEntry);
+    }
+
+    /**
+     * Evicts every cached result that depends on any of the failed dependencies
+     *
+     * @param pFailed the ids of the failed dependencies
+     * @return the number of evicted results
+     */
+    public int invalidate(BitSet pFailed) {
+        if (pFailed.isEmpty()) return 0;
+        int evicted = 0;
+        for (Map<String, Entry> dirResults : results.values()) {
+            for (Iterator<Entry> entryIterator = dirResults.values().iterator(); entryIterator.hasNext(); ) {
+                if (entryIterator.next().dependsOn(pFailed)) {
+                    entryIterator.remove();
+                    evicted++;
+                }
+            }
+        }
+        invalidations.add(evicted);
+        return evicted;
+    }
+
+    /**
+     * Evicts every cached result that read any of the properties
+     *
+     * @param pNames the property names
+     * @return the number of evicted results
+     */
+    public int invalidateProperties(Set<String> pNames) {
+        if (pNames.isEmpty()) return 0;
+        int evicted = 0;
+        for (Map<String, Entry> dirResults : results.values()) {
+            for (Iterator<Entry> entryIterator = dirResults.values().iterator(); entryIterator.hasNext(); ) {
+                if (entryIterator.next().readsAny(pNames)) {
+                    entryIterator.remove();
+                    evicted++;
+                }
+            }
+        }
+        invalidations.add(evicted);
+        return evicted;
+    }
+
+    /**
+     * Sets the time that results are marked with when they are used
+     *
+     * @param pNanos the time (from {@link System#nanoTime()})
+     */
+    void setClock(long pNanos) {
+        clock = pNanos;
+    }
+
+    /**
+     * Evicts the results that haven't been used for longer than the age limit, and then the least recently used results
+     * while there are more than the size limit. Once over the size limit, the cache is trimmed to 90% of it, so that
+     * the sort isn't repeated for every new result.
+     *
+     * @param pMaxResults the size limit (zero or less for none)
+     * @param pMaxAgeNanos the age limit (zero or less for none)
+     * @return the number of evicted results
+     */
+    int trim(int pMaxResults, long pMaxAgeNanos) {
+        long now = clock;
+        int evicted = 0;
+        int size = 0;
+        for (Map<String, Entry> dirResults : results.values()) {
+            if (pMaxAgeNanos <= 0) size += dirResults.size();
+            else for (Iterator<Entry> entryIterator = dirResults.values().iterator(); entryIterator.hasNext(); ) {
+                if (now - entryIterator.next().lastUsed > pMaxAgeNanos) {
+                    entryIterator.remove();
+                    evicted++;
+                } else size++;
+            }
+        }
+        if ((pMaxResults > 0) && (size > pMaxResults)) {
+            List<Map.Entry<Map<String, Entry>, Map.Entry<String, Entry>>> all = new ArrayList<>(size);
+            for (Map<String, Entry> dirResults : results.values())
+                for (Map.Entry<String, Entry> entry : dirResults.entrySet())
+                    all.add(new AbstractMap.SimpleImmutableEntry<>(dirResults, entry));
+            all.sort(Comparator.comparingLong((e) -> e.getValue().getValue().lastUsed));
+            int excess = all.size() - (pMaxResults - pMaxResults / 10);
+            for (int i = 0; i < excess; i++) {
+                Map.Entry<String, Entry> entry = all.get(i).getValue();
+                if (all.get(i).getKey().remove(entry.getKey(), entry.getValue())) evicted++;
+            }
+        }
+
+        /* A result that is stored into a directory's map just as it is removed is lost, which only costs an evaluation */
+
+        results.values().removeIf(Map::isEmpty);
+        trimmed.add(evicted);
+        return evicted;
+    }
+
+    /**
+     * Returns the ids of the dependencies that the cached results of a generation refer to
+     *
+     * @param pGeneration the generation of the dependency store
+     * @return the ids
+     */
+    BitSet getDependencies(int pGeneration) {
+        BitSet ids = new BitSet();
+        for (Map<String, Entry> dirResults : results.values())
+            for (Entry entry : dirResults.values())
+                if (entry.generation == pGeneration) for (int dependency : entry.dependencies)
+                    ids.set(dependency);
+        return ids;
+    }
+
+    /**
+     * Renumbers the dependencies of the cached results after the dependency store was compacted (see
+     * {@link DependencyStore#compact(BitSet)}). A result with a dependency that no longer exists (because it was
+     * stored while the store was being compacted) is evicted, and so is any result from an older generation. Results
+     * from the new generation (stored since the compaction) are already numbered.
+     *
+     * @param pOldGeneration the generation that was compacted
+     * @param pNewGeneration the generation after the compaction
+     * @param pNewIds the new id of each old id (-1 if it no longer exists)
+     */
+    void renumber(int pOldGeneration, int pNewGeneration, int[] pNewIds) {
+        for (Map<String, Entry> dirResults : results.values()) {
+            for (Map.Entry<String, Entry> mapEntry : dirResults.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (entry.generation == pNewGeneration) continue;
+                if (entry.generation != pOldGeneration) {
+                    dirResults.remove(mapEntry.getKey(), entry);
+                    continue;
+                }
+                int[] dependencies = new int[entry.dependencies.length];
+                boolean valid = true;
+                for (int i = 0; (i < dependencies.length) && valid; i++) {
+                    int id = entry.dependencies[i];
+                    dependencies[i] = id < pNewIds.length ? pNewIds[id] : -1;
+                    valid = dependencies[i] >= 0;
+                }
+                if (!valid) dirResults.remove(mapEntry.getKey(), entry);
+                else {
+                    Entry renumbered = new Entry(entry.script, entry.properties, entry.active, dependencies,
+                            pNewGeneration);
+                    renumbered.lastUsed = entry.lastUsed;
+                    dirResults.replace(mapEntry.getKey(), entry, renumbered);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached results
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, Entry> dirResults : results.values())
+            size += dirResults.size();
+        return size;
+    }
+
+    /**
+     * Removes all cached results
+     */
+    public void clear() {
+        results.clear();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Returns the number of results evicted by the size and age limits
+     */
+    public long getTrimmed() {
+        return trimmed.sum();
+    }
+
+    /**
+     * Returns a short description of the cache statistics
+     */
+    public String getStatistics() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        long rate = total == 0 ? 0 : (hitCount * 100) / total;
+        return "Cache: " + results.size() + " project directories, " + hitCount + " hits, " + (total - hitCount)
+                + " misses (" + rate + "% hit rate), " + invalidations.sum() + " invalidations, " + trimmed.sum()
+                + " trimmed";
+    }
+}
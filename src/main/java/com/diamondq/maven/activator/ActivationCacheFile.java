@@ -0,0 +1,199 @@
+package com.diamondq.maven.activator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the activation cache to a file so that the next Maven invocation doesn't have to evaluate the scripts again.
+ * <p>
+ * The dependency checks are the fingerprint of each result: which files exist or are missing, which prefixes are absent
+ * from a profiles directory and the java version markers. The properties that were read are stored with each result as
+ * a {@link PropertyFingerprint} (and the project directory is part of the key). Since the scripts only ever test for
+ * existence, file modification times don't need to be recorded. Nothing is trusted when the file is loaded, since every
+ * loaded dependency is checked by the first validation sweep like any other.
+ * <p>
+ * The layout is a header, the names, the dependency checks as fixed size records, and then the results referring to the
+ * checks by number.
+ */
+public final class ActivationCacheFile {
+
+    /**
+     * "DQAC"
+     */
+    private static final int MAGIC = 0x44514143;
+
+    private static final int FORMAT_VERSION = 4;
+
+    private ActivationCacheFile() {
+    }
+
+    /**
+     * Loads the results from the file into the cache
+     *
+     * @param pFile the file
+     * @param pCache the cache
+     * @param pDependencyStore the dependency store
+     * @return the number of loaded results
+     * @throws IOException if the file can't be read or is corrupt
+     */
+    public static int load(File pFile, ActivationCache pCache, DependencyStore pDependencyStore) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(pFile.toPath()), 65536))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not an activation cache file");
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported activation cache version " + version);
+            int[] ids = pDependencyStore.read(in);
+            int generation = pDependencyStore.getGeneration();
+
+            int resultCount = in.readInt();
+            if (resultCount < 0) throw new IOException("Invalid result count " + resultCount);
+            for (int i = 0; i < resultCount; i++) {
+                String dirKey = DependencyStore.readString(in);
+                String profileId = DependencyStore.readString(in);
+                String script = in.readBoolean() ? DependencyStore.readString(in) : null;
+                String[] keys = readStrings(in);
+                String[] projectKeys = readStrings(in);
+                PropertyFingerprint properties = null;
+                if ((keys.length != 0) || (projectKeys.length != 0)) {
+                    String[] values = new String[keys.length * 2 + projectKeys.length];
+                    for (int v = 0; v < values.length; v++)
+                        values[v] = in.readBoolean() ? DependencyStore.readString(in) : null;
+                    properties = new PropertyFingerprint(keys, projectKeys, values);
+                }
+                boolean active = in.readBoolean();
+                int dependencyCount = in.readInt();
+                if ((dependencyCount < 0) || (dependencyCount > ids.length))
+                    throw new IOException("Invalid dependency count " + dependencyCount);
+                int[] dependencies = new int[dependencyCount];
+                for (int d = 0; d < dependencyCount; d++) {
+                    int number = in.readInt();
+                    if ((number < 0) || (number >= ids.length)) throw new IOException("Invalid dependency " + number);
+                    dependencies[d] = ids[number];
+                }
+                pCache.put(dirKey, profileId, new ActivationCache.Entry(script, properties, active, dependencies,
+                        generation));
+            }
+            return resultCount;
+        }
+    }
+
+    /**
+     * Saves the cached results to the file. The file is replaced atomically where the platform supports it.
+     *
+     * @param pFile the file
+     * @param pCache the cache
+     * @param pDependencyStore the dependency store
+     * @return the number of saved results
+     * @throws IOException if the file can't be written
+     */
+    public static int save(File pFile, ActivationCache pCache, DependencyStore pDependencyStore) throws IOException {
+
+        /* Take a snapshot of the results and the dependencies they use */
+
+        List<String> dirKeys = new ArrayList<>();
+        List<String> profileIds = new ArrayList<>();
+        List<ActivationCache.Entry> entries = new ArrayList<>();
+        BitSet used = new BitSet();
+        int generation = pDependencyStore.getGeneration();
+        for (Map.Entry<String, ? extends Map<String, ActivationCache.Entry>> dirResults : pCache.getResults()
+                .entrySet()) {
+            for (Map.Entry<String, ActivationCache.Entry> result : dirResults.getValue().entrySet()) {
+                if (result.getValue().generation != generation) continue;
+                dirKeys.add(dirResults.getKey());
+                profileIds.add(result.getKey());
+                entries.add(result.getValue());
+                for (int dependency : result.getValue().dependencies)
+                    used.set(dependency);
+            }
+        }
+
+        /* Each save gets its own temporary file, since another build in the same tree may be saving at the same time */
+
+        Path target = pFile.toPath().toAbsolutePath();
+        Path parent = target.getParent();
+        Files.createDirectories(parent);
+        Path tempFile = Files.createTempFile(parent, target.getFileName() + ".", ".tmp");
+        int saved;
+        try {
+            saved = write(tempFile, dirKeys, profileIds, entries, used, pDependencyStore);
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return saved;
+    }
+
+    private static int write(Path pFile, List<String> pDirKeys, List<String> pProfileIds,
+                             List<ActivationCache.Entry> pEntries, BitSet pUsed, DependencyStore pDependencyStore)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(pFile), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            int[] numbers = pDependencyStore.write(out, pUsed);
+
+            /* Results that depend on a dead dependency (ie. evicted since the snapshot) are skipped */
+
+            List<Integer> valid = new ArrayList<>();
+            for (int i = 0; i < pEntries.size(); i++)
+                if (allWritten(pEntries.get(i).dependencies, numbers)) valid.add(i);
+            out.writeInt(valid.size());
+            for (int i : valid) {
+                ActivationCache.Entry entry = pEntries.get(i);
+                DependencyStore.writeString(out, pDirKeys.get(i));
+                DependencyStore.writeString(out, pProfileIds.get(i));
+                out.writeBoolean(entry.script != null);
+                if (entry.script != null) DependencyStore.writeString(out, entry.script);
+                PropertyFingerprint properties = entry.properties;
+                writeStrings(out, properties == null ? new String[0] : properties.keys);
+                writeStrings(out, properties == null ? new String[0] : properties.projectKeys);
+                if (properties != null) for (String value : properties.values) {
+                    out.writeBoolean(value != null);
+                    if (value != null) DependencyStore.writeString(out, value);
+                }
+                out.writeBoolean(entry.active);
+                out.writeInt(entry.dependencies.length);
+                for (int dependency : entry.dependencies)
+                    out.writeInt(numbers[dependency]);
+            }
+            return valid.size();
+        }
+    }
+
+    private static void writeStrings(DataOutputStream pOut, String[] pValues) throws IOException {
+        pOut.writeInt(pValues.length);
+        for (String value : pValues)
+            DependencyStore.writeString(pOut, value);
+    }
+
+    private static String[] readStrings(DataInputStream pIn) throws IOException {
+        int count = pIn.readInt();
+        if ((count < 0) || (count > 65536)) throw new IOException("Invalid string count " + count);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+            values[i] = DependencyStore.readString(pIn);
+        return values;
+    }
+
+    private static boolean allWritten(int[] pDependencies, int[] pNumbers) {
+        for (int dependency : pDependencies)
+            if ((dependency >= pNumbers.length) || (pNumbers[dependency] < 0)) return false;
+        return true;
+    }
+}
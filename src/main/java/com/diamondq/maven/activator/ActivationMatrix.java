@@ -0,0 +1,309 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.building.ModelProblemCollector;
+import org.apache.maven.model.building.ModelProblemCollectorRequest;
+import org.apache.maven.model.path.DefaultPathTranslator;
+import org.apache.maven.model.path.PathTranslator;
+import org.apache.maven.model.path.ProfileActivationFilePathInterpolator;
+import org.apache.maven.model.profile.DefaultProfileActivationContext;
+import org.apache.maven.model.profile.activation.FileProfileActivator;
+import org.apache.maven.model.profile.activation.JdkVersionProfileActivator;
+import org.apache.maven.model.profile.activation.OperatingSystemProfileActivator;
+import org.apache.maven.model.profile.activation.ProfileActivator;
+import org.apache.maven.model.profile.activation.PropertyProfileActivator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Works out which profiles every project of a reactor activates, for any number of property sets, in a single JVM and
+ * without running Maven. The output is a JSON matrix, which a CI pipeline can use to decide which jobs to run.
+ * <p>
+ * Run it with the extension jar and Maven's own libraries on the class path:
+ * <pre>
+ * java -cp maven-profile-activator.jar:$MAVEN_HOME/lib/* com.diamondq.maven.activator.ActivationMatrix \
+ *     --set default --set ci:ci=true,release=true -o matrix.json path/to/reactor
+ * </pre>
+ * The reactor is found the same way as for pre-warming (see {@link ActivationPrewarmer}): by following the modules of
+ * the top level pom, where the profiles of a pom also apply to the poms of its modules. Every set is evaluated by the
+ * same selector within a single session, so the compiled scripts, the file system results and the cached results are
+ * shared by the whole matrix. The poms are read as they are (without the parent poms from a repository, and without
+ * interpolation), so anything that only the full model building would know about isn't taken into account.
+ */
+public final class ActivationMatrix {
+
+    private static final String USAGE = "Usage: ActivationMatrix [options] <directory or pom>\n"
+            + "  --set <name>[:key=value,...]  a set of user properties (repeatable, one empty set by default)\n"
+            + "  -D<key>=<value>                a user property for every set\n"
+            + "  -o <file>                      where to write the matrix (standard output by default)\n";
+
+    /**
+     * A named set of user properties
+     */
+    private static final class PropertySet {
+        final String name;
+        final Map<String, String> properties = new LinkedHashMap<>();
+
+        PropertySet(String pName) {
+            name = pName;
+        }
+    }
+
+    /**
+     * The problems reported while activating the profiles of one project with one property set
+     */
+    private static final class ProblemCollector implements ModelProblemCollector {
+        final List<String> messages = new ArrayList<>(0);
+
+        @Override
+        public void add(ModelProblemCollectorRequest pRequest) {
+            messages.add(pRequest.getMessage());
+        }
+    }
+
+    private ActivationMatrix() {
+    }
+
+    public static void main(String[] pArgs) {
+        System.exit(run(pArgs, System.out, System.err));
+    }
+
+    /**
+     * Runs the evaluator
+     *
+     * @param pArgs the command line arguments
+     * @param pOut where the matrix is written (unless a file is given)
+     * @param pErr where the errors are written
+     * @return the exit code
+     */
+    static int run(String[] pArgs, PrintStream pOut, PrintStream pErr) {
+        List<PropertySet> sets = new ArrayList<>();
+        Map<String, String> common = new LinkedHashMap<>();
+        File output = null;
+        File target = null;
+        for (int i = 0; i < pArgs.length; i++) {
+            String arg = pArgs[i];
+            if ("--set".equals(arg) && (i + 1 < pArgs.length)) sets.add(parseSet(pArgs[++i]));
+            else if ("-o".equals(arg) && (i + 1 < pArgs.length)) output = new File(pArgs[++i]);
+            else if (arg.startsWith("-D") && (arg.length() > 2)) parseProperty(arg.substring(2), common);
+            else if (!arg.startsWith("-") && (target == null)) target = new File(arg);
+            else {
+                pErr.print(USAGE);
+                return 1;
+            }
+        }
+        if (target == null) {
+            pErr.print(USAGE);
+            return 1;
+        }
+        if (sets.isEmpty()) sets.add(new PropertySet("default"));
+        for (PropertySet set : sets)
+            for (Map.Entry<String, String> entry : common.entrySet())
+                set.properties.putIfAbsent(entry.getKey(), entry.getValue());
+
+        File topPom = target.isDirectory() ? new File(target, "pom.xml") : target;
+        if (!topPom.isFile()) {
+            pErr.println("No pom found at " + topPom);
+            return 1;
+        }
+        String json = evaluate(topPom, sets, pErr);
+        try {
+            if (output == null) pOut.print(json);
+            else {
+                File parent = output.getAbsoluteFile().getParentFile();
+                if (parent != null) Files.createDirectories(parent.toPath());
+                try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+                    writer.write(json);
+                }
+            }
+        } catch (IOException ex) {
+            pErr.println("Unable to write the matrix " + output + ": " + ex.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    private static PropertySet parseSet(String pValue) {
+        int colon = pValue.indexOf(':');
+        PropertySet set = new PropertySet(colon == -1 ? pValue : pValue.substring(0, colon));
+        if (colon != -1) for (String property : pValue.substring(colon + 1).split(","))
+            if (!property.isEmpty()) parseProperty(property, set.properties);
+        return set;
+    }
+
+    /**
+     * Parses key=value (a key on its own is 'true', like -D)
+     */
+    private static void parseProperty(String pValue, Map<String, String> pProperties) {
+        int eq = pValue.indexOf('=');
+        if (eq == -1) pProperties.put(pValue.trim(), "true");
+        else pProperties.put(pValue.substring(0, eq).trim(), pValue.substring(eq + 1).trim());
+    }
+
+    /**
+     * Evaluates the profiles of every project for every set
+     *
+     * @param pTopPom the top level pom
+     * @param pSets the property sets
+     * @param pErr where the warnings are written
+     * @return the JSON matrix
+     */
+    private static String evaluate(File pTopPom, List<PropertySet> pSets, PrintStream pErr) {
+        PathTranslator pathTranslator = new DefaultPathTranslator();
+        List<ProfileActivator> activators = Arrays.asList(new JdkVersionProfileActivator(),
+                new OperatingSystemProfileActivator(), new PropertyProfileActivator(), new FileProfileActivator()
+                        .setProfileActivationFilePathInterpolator(
+                                new ProfileActivationFilePathInterpolator().setPathTranslator(pathTranslator)));
+        CommonProfileSelector selector = new CommonProfileSelector(activators, new ActivatorLogger() {
+            @Override
+            public void debug(String pMsg) {
+            }
+
+            @Override
+            public void error(String pMsg, Throwable pThrowable) {
+                pErr.println("[ERROR] " + pMsg);
+            }
+
+            @Override
+            public void info(String pMsg) {
+            }
+
+            @Override
+            public void warn(String pMsg) {
+                pErr.println("[WARNING] " + pMsg);
+            }
+
+            @Override
+            public boolean isDebugEnabled() {
+                return false;
+            }
+        }, pathTranslator);
+
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+        Properties system = System.getProperties();
+        for (String key : system.stringPropertyNames())
+            systemProperties.put(key, system.getProperty(key));
+
+        Map<File, ActivationPrewarmer.Project> projects = ActivationPrewarmer.scanProjects(pTopPom);
+        List<ActivationPrewarmer.Project> ordered = new ArrayList<>(projects.values());
+        @SuppressWarnings({"unchecked", "rawtypes"}) List<Profile>[][] active = new List[ordered.size()][pSets.size()];
+        @SuppressWarnings({"unchecked", "rawtypes"}) List<String>[][] problems = new List[ordered.size()][pSets.size()];
+
+        selector.startSession();
+        String manifests = systemProperties.get("DiamondQProfileSelectorManifest");
+        if (manifests != null) selector.setManifests(Boolean.parseBoolean(manifests));
+        try {
+            selector.prewarm(ActivationPrewarmer.getScripts(projects),
+                    CommonProfileSelector.getParallelism(systemProperties.get("DiamondQProfileSelectorParallel")));
+            for (int s = 0; s < pSets.size(); s++) {
+                for (int p = 0; p < ordered.size(); p++) {
+                    ActivationPrewarmer.Project project = ordered.get(p);
+
+                    /* Like the model builder, one context per project, with the properties of each pom in turn */
+
+                    DefaultProfileActivationContext context = new DefaultProfileActivationContext();
+                    context.setProjectDirectory(project.directory);
+                    context.setSystemProperties(systemProperties);
+                    context.setUserProperties(pSets.get(s).properties);
+                    context.setActiveProfileIds(Collections.emptyList());
+                    context.setInactiveProfileIds(Collections.emptyList());
+                    List<ActivationPrewarmer.Project> lineage = new ArrayList<>();
+                    for (ActivationPrewarmer.Project current = project; current != null; current = current.parent)
+                        lineage.add(0, current);
+                    List<Profile> activeProfiles = new ArrayList<>();
+                    ProblemCollector collector = new ProblemCollector();
+                    for (ActivationPrewarmer.Project pom : lineage) {
+                        if ((pom.model == null) || pom.model.getProfiles().isEmpty()) continue;
+                        context.setProjectProperties(pom.model.getProperties());
+                        activeProfiles.addAll(selector.select(pom.model.getProfiles(), context, collector));
+                    }
+                    active[p][s] = activeProfiles;
+                    problems[p][s] = collector.messages;
+                }
+            }
+        } finally {
+            selector.endSession();
+        }
+        return toJson(pTopPom.getAbsoluteFile().getParentFile(), ordered, projects, pSets, active, problems);
+    }
+
+    private static String toJson(File pTopDir, List<ActivationPrewarmer.Project> pProjects,
+                                 Map<File, ActivationPrewarmer.Project> pByDirectory, List<PropertySet> pSets,
+                                 List<Profile>[][] pActive, List<String>[][] pProblems) {
+        StringBuilder sb = new StringBuilder("{\n  \"sets\": [");
+        for (int s = 0; s < pSets.size(); s++) {
+            if (s > 0) sb.append(", ");
+            ActivationMetrics.appendJsonString(sb, pSets.get(s).name);
+        }
+        sb.append("],\n  \"projects\": [");
+        for (int p = 0; p < pProjects.size(); p++) {
+            ActivationPrewarmer.Project project = pProjects.get(p);
+            sb.append(p == 0 ? "\n" : ",\n").append("    {\"directory\": ");
+            ActivationMetrics.appendJsonString(sb, relativize(pTopDir, project.directory));
+            if ((project.model != null) && (project.model.getArtifactId() != null)) {
+                sb.append(", \"artifactId\": ");
+                ActivationMetrics.appendJsonString(sb, project.model.getArtifactId());
+            }
+            sb.append(", \"active\": {");
+            for (int s = 0; s < pSets.size(); s++) {
+                sb.append(s == 0 ? "\n" : ",\n").append("      ");
+                ActivationMetrics.appendJsonString(sb, pSets.get(s).name);
+                sb.append(": [");
+                boolean first = true;
+                for (Profile profile : pActive[p][s]) {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    sb.append("{\"id\": ");
+                    ActivationMetrics.appendJsonString(sb, profile.getId());
+                    sb.append(", \"source\": ");
+                    ActivationMetrics.appendJsonString(sb, relativize(pTopDir, getSource(profile, project)));
+                    sb.append('}');
+                }
+                sb.append(']');
+            }
+            sb.append("\n    }, \"problems\": {");
+            boolean firstSet = true;
+            for (int s = 0; s < pSets.size(); s++) {
+                if (pProblems[p][s].isEmpty()) continue;
+                sb.append(firstSet ? "" : ", ");
+                firstSet = false;
+                ActivationMetrics.appendJsonString(sb, pSets.get(s).name);
+                sb.append(": [");
+                for (int m = 0; m < pProblems[p][s].size(); m++) {
+                    if (m > 0) sb.append(", ");
+                    ActivationMetrics.appendJsonString(sb, pProblems[p][s].get(m));
+                }
+                sb.append(']');
+            }
+            sb.append("}}");
+        }
+        sb.append(pProjects.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the directory of the pom that declares a profile
+     */
+    private static File getSource(Profile pProfile, ActivationPrewarmer.Project pProject) {
+        for (ActivationPrewarmer.Project current = pProject; current != null; current = current.parent)
+            if ((current.model != null) && current.model.getProfiles().contains(pProfile)) return current.directory;
+        return pProject.directory;
+    }
+
+    private static String relativize(File pTopDir, File pDirectory) {
+        String path = pTopDir.toPath().relativize(pDirectory.toPath()).toString().replace(File.separatorChar, '/');
+        return path.isEmpty() ? "." : path;
+    }
+}
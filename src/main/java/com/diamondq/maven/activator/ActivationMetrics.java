@@ -0,0 +1,327 @@
+package com.diamondq.maven.activator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for the profile selection of a build session. Everything is a {@link LongAdder} (or an
+ * accumulator), so recording is cheap and safe from parallel builds, and the numbers are only added up when the report
+ * is written.
+ * <p>
+ * The cache and file system counters live in {@link ActivationCache} and {@link FileSystemSnapshot} (for the lifetime
+ * of the selector), so their values at the start of the session are kept to report the difference.
+ */
+public class ActivationMetrics {
+
+    /**
+     * A call count along with the total and the longest time
+     */
+    static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+        void record(long pNanos) {
+            count.increment();
+            nanos.add(pNanos);
+            maxNanos.accumulate(pNanos);
+        }
+    }
+
+    private final ActivationCache cache;
+    private final FileSystemSnapshot fileSystem;
+
+    private final Timer selects = new Timer();
+    private final Timer evaluations = new Timer();
+    private final Timer validations = new Timer();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reusedExpressions = new LongAdder();
+    private final LongAdder memoryReleases = new LongAdder();
+    private final LongAdder releasedResults = new LongAdder();
+
+    /**
+     * Without sessions (such as in an IDE) nothing resets the timers, so past this many profile ids (or project
+     * directories) the rest are counted together
+     */
+    private static final int MAX_TIMERS = 10_000;
+
+    private static final String OTHER = "(other)";
+
+    /**
+     * The evaluation time of each profile id (across all the modules)
+     */
+    private final ConcurrentMap<String, Timer> profiles = new ConcurrentHashMap<>();
+
+    /**
+     * The select time of each project directory
+     */
+    private final ConcurrentMap<String, Timer> modules = new ConcurrentHashMap<>();
+
+    private long baseHits;
+    private long baseMisses;
+    private long baseInvalidations;
+    private long baseTrimmed;
+    private long baseStatCalls;
+    private long baseListCalls;
+    private long baseSavedCalls;
+    private long baseManifestReads;
+
+    ActivationMetrics(ActivationCache pCache, FileSystemSnapshot pFileSystem) {
+        cache = pCache;
+        fileSystem = pFileSystem;
+    }
+
+    /**
+     * Starts counting from zero (called when a session starts)
+     */
+    void reset() {
+        selects.count.reset();
+        selects.nanos.reset();
+        selects.maxNanos.reset();
+        evaluations.count.reset();
+        evaluations.nanos.reset();
+        evaluations.maxNanos.reset();
+        validations.count.reset();
+        validations.nanos.reset();
+        validations.maxNanos.reset();
+        evictions.reset();
+        reusedExpressions.reset();
+        memoryReleases.reset();
+        releasedResults.reset();
+        profiles.clear();
+        modules.clear();
+        baseHits = cache.getHits();
+        baseMisses = cache.getMisses();
+        baseInvalidations = cache.getInvalidations();
+        baseTrimmed = cache.getTrimmed();
+        baseStatCalls = fileSystem.getStatCalls();
+        baseListCalls = fileSystem.getListCalls();
+        baseSavedCalls = fileSystem.getSavedCalls();
+        baseManifestReads = fileSystem.getManifestReads();
+    }
+
+    /**
+     * Records a select() call
+     *
+     * @param pProjectDir the project directory (may be null)
+     * @param pNanos the time it took
+     */
+    void recordSelect(File pProjectDir, long pNanos) {
+        selects.record(pNanos);
+        timer(modules, pProjectDir == null ? "" : pProjectDir.getPath()).record(pNanos);
+    }
+
+    /**
+     * Records the evaluation of a script (a cache miss)
+     *
+     * @param pProfileId the profile id
+     * @param pNanos the time it took
+     */
+    void recordEvaluation(String pProfileId, long pNanos) {
+        evaluations.record(pNanos);
+        timer(profiles, pProfileId).record(pNanos);
+    }
+
+    private static Timer timer(ConcurrentMap<String, Timer> pTimers, String pKey) {
+        Timer timer = pTimers.get(pKey);
+        if (timer != null) return timer;
+        return pTimers.computeIfAbsent(pTimers.size() >= MAX_TIMERS ? OTHER : pKey, (k) -> new Timer());
+    }
+
+    /**
+     * Records a dependency validation sweep
+     *
+     * @param pEvicted the number of results that were evicted
+     * @param pNanos the time it took
+     */
+    void recordValidation(int pEvicted, long pNanos) {
+        validations.record(pNanos);
+        evictions.add(pEvicted);
+    }
+
+    /**
+     * Records the sub-expression results that were reused within a select() call (see {@link ExpressionMemo})
+     *
+     * @param pCount the number of reused results
+     */
+    void recordReusedExpressions(int pCount) {
+        reusedExpressions.add(pCount);
+    }
+
+    /**
+     * Records that everything cached was released because memory was running low
+     *
+     * @param pResults the number of cached results that were released
+     */
+    void recordMemoryRelease(int pResults) {
+        memoryReleases.increment();
+        releasedResults.add(pResults);
+    }
+
+    /**
+     * Returns the one line summary of the session
+     */
+    public String getSummary() {
+        long hits = cache.getHits() - baseHits;
+        long total = hits + cache.getMisses() - baseMisses;
+        StringBuilder sb = new StringBuilder();
+        sb.append(selects.count.sum()).append(" selects in ").append(millis(selects.nanos.sum())).append(" ms (");
+        sb.append(evaluations.count.sum()).append(" evaluations in ").append(millis(evaluations.nanos.sum()));
+        sb.append(" ms, ").append(validations.count.sum()).append(" validations in ");
+        sb.append(millis(validations.nanos.sum())).append(" ms), ");
+        sb.append(total == 0 ? 0 : (hits * 100) / total).append("% cache hits, ");
+        sb.append(fileSystem.getStatCalls() - baseStatCalls).append(" stat calls, ");
+        sb.append(fileSystem.getListCalls() - baseListCalls).append(" list calls");
+        List<Map.Entry<String, Timer>> slowest = sorted(profiles);
+        if (!slowest.isEmpty()) {
+            Map.Entry<String, Timer> entry = slowest.get(0);
+            sb.append(". Slowest profile: ").append(entry.getKey()).append(" (");
+            sb.append(millis(entry.getValue().nanos.sum())).append(" ms)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the report. A file ending with .csv is written as CSV, and anything else as JSON.
+     *
+     * @param pFile the file
+     * @throws IOException if the file can't be written
+     */
+    public void write(File pFile) throws IOException {
+        File parent = pFile.getAbsoluteFile().getParentFile();
+        if (parent != null) Files.createDirectories(parent.toPath());
+        try (Writer writer = Files.newBufferedWriter(pFile.toPath(), StandardCharsets.UTF_8)) {
+            if (pFile.getName().toLowerCase(Locale.ENGLISH).endsWith(".csv")) writeCsv(writer);
+            else writeJson(writer);
+        }
+    }
+
+    private void writeJson(Writer pWriter) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n");
+        appendTimer(sb, "selects", selects);
+        appendTimer(sb, "evaluations", evaluations);
+        appendTimer(sb, "validations", validations);
+        sb.append("  \"evictions\": ").append(evictions.sum()).append(",\n");
+        sb.append("  \"reusedExpressions\": ").append(reusedExpressions.sum()).append(",\n");
+        sb.append("  \"cacheHits\": ").append(cache.getHits() - baseHits).append(",\n");
+        sb.append("  \"cacheMisses\": ").append(cache.getMisses() - baseMisses).append(",\n");
+        sb.append("  \"cacheInvalidations\": ").append(cache.getInvalidations() - baseInvalidations).append(",\n");
+        sb.append("  \"cacheTrimmed\": ").append(cache.getTrimmed() - baseTrimmed).append(",\n");
+        sb.append("  \"memoryReleases\": ").append(memoryReleases.sum()).append(",\n");
+        sb.append("  \"releasedResults\": ").append(releasedResults.sum()).append(",\n");
+        sb.append("  \"statCalls\": ").append(fileSystem.getStatCalls() - baseStatCalls).append(",\n");
+        sb.append("  \"listCalls\": ").append(fileSystem.getListCalls() - baseListCalls).append(",\n");
+        sb.append("  \"savedCalls\": ").append(fileSystem.getSavedCalls() - baseSavedCalls).append(",\n");
+        sb.append("  \"manifestReads\": ").append(fileSystem.getManifestReads() - baseManifestReads).append(",\n");
+        appendTimers(sb, "profiles", "id", profiles);
+        sb.append(",\n");
+        appendTimers(sb, "modules", "directory", modules);
+        sb.append("\n}\n");
+        pWriter.write(sb.toString());
+    }
+
+    private static void appendTimer(StringBuilder pSb, String pName, Timer pTimer) {
+        pSb.append("  \"").append(pName).append("\": {\"count\": ").append(pTimer.count.sum());
+        pSb.append(", \"totalMillis\": ").append(millis(pTimer.nanos.sum()));
+        pSb.append(", \"maxMillis\": ").append(millis(pTimer.maxNanos.get())).append("},\n");
+    }
+
+    private static void appendTimers(StringBuilder pSb, String pName, String pKeyName,
+                                     ConcurrentMap<String, Timer> pTimers) {
+        pSb.append("  \"").append(pName).append("\": [");
+        boolean first = true;
+        for (Map.Entry<String, Timer> entry : sorted(pTimers)) {
+            pSb.append(first ? "\n" : ",\n");
+            first = false;
+            Timer timer = entry.getValue();
+            pSb.append("    {\"").append(pKeyName).append("\": ");
+            appendJsonString(pSb, entry.getKey());
+            pSb.append(", \"count\": ").append(timer.count.sum());
+            pSb.append(", \"totalMillis\": ").append(millis(timer.nanos.sum()));
+            pSb.append(", \"maxMillis\": ").append(millis(timer.maxNanos.get())).append('}');
+        }
+        pSb.append(first ? "]" : "\n  ]");
+    }
+
+    static void appendJsonString(StringBuilder pSb, String pValue) {
+        pSb.append('"');
+        for (int i = 0; i < pValue.length(); i++) {
+            char c = pValue.charAt(i);
+            if ((c == '"') || (c == '\\')) pSb.append('\\').append(c);
+            else if (c < 0x20) pSb.append(String.format("\\u%04x", (int) c));
+            else pSb.append(c);
+        }
+        pSb.append('"');
+    }
+
+    /**
+     * One row per timer or counter. The kind is select, evaluation or validation for the totals, profile or module for
+     * the breakdowns, and counter for the plain counts (which only fill the count column).
+     */
+    private void writeCsv(Writer pWriter) throws IOException {
+        StringBuilder sb = new StringBuilder("kind,name,count,total_ms,max_ms\n");
+        appendCsv(sb, "select", "", selects);
+        appendCsv(sb, "evaluation", "", evaluations);
+        appendCsv(sb, "validation", "", validations);
+        appendCsv(sb, "evictions", evictions.sum());
+        appendCsv(sb, "reused.expressions", reusedExpressions.sum());
+        appendCsv(sb, "cache.hits", cache.getHits() - baseHits);
+        appendCsv(sb, "cache.misses", cache.getMisses() - baseMisses);
+        appendCsv(sb, "cache.invalidations", cache.getInvalidations() - baseInvalidations);
+        appendCsv(sb, "cache.trimmed", cache.getTrimmed() - baseTrimmed);
+        appendCsv(sb, "memory.releases", memoryReleases.sum());
+        appendCsv(sb, "memory.released.results", releasedResults.sum());
+        appendCsv(sb, "fs.stat", fileSystem.getStatCalls() - baseStatCalls);
+        appendCsv(sb, "fs.list", fileSystem.getListCalls() - baseListCalls);
+        appendCsv(sb, "fs.saved", fileSystem.getSavedCalls() - baseSavedCalls);
+        appendCsv(sb, "fs.manifest.reads", fileSystem.getManifestReads() - baseManifestReads);
+        for (Map.Entry<String, Timer> entry : sorted(profiles))
+            appendCsv(sb, "profile", entry.getKey(), entry.getValue());
+        for (Map.Entry<String, Timer> entry : sorted(modules))
+            appendCsv(sb, "module", entry.getKey(), entry.getValue());
+        pWriter.write(sb.toString());
+    }
+
+    private static void appendCsv(StringBuilder pSb, String pKind, String pName, Timer pTimer) {
+        pSb.append(pKind).append(',');
+        appendCsvString(pSb, pName);
+        pSb.append(',').append(pTimer.count.sum()).append(',').append(millis(pTimer.nanos.sum()));
+        pSb.append(',').append(millis(pTimer.maxNanos.get())).append('\n');
+    }
+
+    private static void appendCsv(StringBuilder pSb, String pName, long pCount) {
+        pSb.append("counter,").append(pName).append(',').append(pCount).append(",,\n");
+    }
+
+    private static void appendCsvString(StringBuilder pSb, String pValue) {
+        if ((pValue.indexOf(',') < 0) && (pValue.indexOf('"') < 0) && (pValue.indexOf('\n') < 0)) {
+            pSb.append(pValue);
+            return;
+        }
+        pSb.append('"').append(pValue.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Returns the timers, slowest first
+     */
+    private static List<Map.Entry<String, Timer>> sorted(ConcurrentMap<String, Timer> pTimers) {
+        List<Map.Entry<String, Timer>> entries = new ArrayList<>(pTimers.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().nanos.sum(), a.getValue().nanos.sum()));
+        return entries;
+    }
+
+    private static String millis(long pNanos) {
+        return String.format(Locale.ROOT, "%.3f", pNanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,209 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Activation;
+import org.apache.maven.model.ActivationProperty;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds what the [DIAMONDQ] scripts of a reactor are going to check before model building starts, so that the file
+ * system snapshot can be filled in bulk (see {@link CommonProfileSelector#prewarm(Map, int)}).
+ * <p>
+ * The reactor is found by following the modules of the top level pom (including the modules of every profile, since
+ * it isn't known yet which profiles are active). A module is checked with its own scripts and with the scripts of the
+ * poms above it, since the profiles of a parent are activated against the module's directory. Anything that can't be
+ * read is skipped, since the worst case is that the module's files are checked later, as they would have been anyway.
+ * <p>
+ * The same scan finds the projects for the {@link ActivationMatrix}.
+ */
+final class ActivationPrewarmer {
+
+    private ActivationPrewarmer() {
+    }
+
+    /**
+     * A project of the reactor
+     */
+    static final class Project {
+        final File directory;
+
+        /**
+         * The pom, or null if it can't be read
+         */
+        final Model model;
+
+        /**
+         * The project whose modules include this one (null for the top level project)
+         */
+        final Project parent;
+
+        Project(File pDirectory, Model pModel, Project pParent) {
+            directory = pDirectory;
+            model = pModel;
+            parent = pParent;
+        }
+    }
+
+    /**
+     * Returns the [DIAMONDQ] scripts that apply to each project directory of the reactor
+     *
+     * @param pTopPom the top level pom
+     * @return the scripts keyed by project directory
+     */
+    static Map<File, Set<String>> scanReactor(File pTopPom) {
+        return getScripts(scanProjects(pTopPom));
+    }
+
+    /**
+     * Returns the projects of the reactor, each one after the project above it
+     *
+     * @param pTopPom the top level pom
+     * @return the projects keyed by project directory
+     */
+    static Map<File, Project> scanProjects(File pTopPom) {
+        Map<File, Project> result = new LinkedHashMap<>();
+        scan(pTopPom.getAbsoluteFile(), null, result);
+        return result;
+    }
+
+    /**
+     * Returns the [DIAMONDQ] scripts that apply to each project (its own and the ones of the projects above it)
+     *
+     * @param pProjects the projects, each one after the project above it
+     * @return the scripts keyed by project directory
+     */
+    static Map<File, Set<String>> getScripts(Map<File, Project> pProjects) {
+        Map<File, Set<String>> result = new LinkedHashMap<>();
+        for (Project project : pProjects.values()) {
+            Set<String> scripts = project.parent == null ? new LinkedHashSet<>() :
+                    new LinkedHashSet<>(result.get(project.parent.directory));
+            if (project.model != null) for (Profile profile : project.model.getProfiles()) {
+                Activation activation = profile.getActivation();
+                ActivationProperty property = activation == null ? null : activation.getProperty();
+                if ((property != null) && "[DIAMONDQ]".equals(property.getName()) && (property.getValue() != null))
+                    scripts.add(property.getValue());
+            }
+            result.put(project.directory, scripts);
+        }
+        return result;
+    }
+
+    private static void scan(File pPom, Project pParent, Map<File, Project> pResult) {
+        File projectDir = pPom.getParentFile();
+        if ((projectDir == null) || pResult.containsKey(projectDir)) return;
+        Project project = new Project(projectDir, read(pPom), pParent);
+        pResult.put(projectDir, project);
+        if (project.model == null) return;
+
+        Set<String> modules = new LinkedHashSet<>(project.model.getModules());
+        for (Profile profile : project.model.getProfiles())
+            modules.addAll(profile.getModules());
+        for (String module : modules) {
+            File modulePom = new File(projectDir, module.replace('\\', File.separatorChar));
+            if (modulePom.isDirectory()) modulePom = new File(modulePom, "pom.xml");
+            scan(normalize(modulePom), project, pResult);
+        }
+    }
+
+    private static File normalize(File pFile) {
+        return pFile.toPath().normalize().toFile();
+    }
+
+    private static Model read(File pPom) {
+        if (!pPom.isFile()) return null;
+        try (InputStream in = Files.newInputStream(pPom.toPath())) {
+            return new MavenXpp3Reader().read(in, false);
+        } catch (IOException | XmlPullParserException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Collects the checks of a script against a project directory. Only paths that can be resolved without the
+     * properties are collected (plain paths and ${basedir}).
+     *
+     * @param pExpression the compiled script
+     * @param pProjectDir the aligned project directory
+     * @param pSelector the selector
+     * @param pFiles receives the files whose existence is checked
+     * @param pDirs receives the directories that are listed
+     */
+    static void collect(Expression pExpression, String pProjectDir, CommonProfileSelector pSelector,
+                        Collection<File> pFiles, Collection<File> pDirs) {
+        if (pExpression instanceof Expression.Or) {
+            for (Expression child : ((Expression.Or) pExpression).children)
+                collect(child, pProjectDir, pSelector, pFiles, pDirs);
+        } else if (pExpression instanceof Expression.And) {
+            for (Expression child : ((Expression.And) pExpression).children)
+                collect(child, pProjectDir, pSelector, pFiles, pDirs);
+        } else if (pExpression instanceof Expression.Not) {
+            collect(((Expression.Not) pExpression).child, pProjectDir, pSelector, pFiles, pDirs);
+        } else if (pExpression instanceof Expression.FileCheck) {
+            String path = resolve(((Expression.FileCheck) pExpression).path, pProjectDir, pSelector);
+            if (path != null) pFiles.add(new File(path));
+        } else if (pExpression instanceof Expression.ProfileCheck) {
+            Expression.ProfileCheck check = (Expression.ProfileCheck) pExpression;
+            collect(check.localCheck, pProjectDir, pSelector, pFiles, pDirs);
+            if (check.simpleName) {
+                for (DirectoryTree.Node node = pSelector.directoryTree.get(pProjectDir); node != null;
+                     node = node.parent)
+                    pDirs.add(node.parentProfilesDir);
+            }
+        } else if ((pExpression instanceof Expression.TypeCheck) || (pExpression instanceof Expression.JdkCheck)) {
+            String path = resolve(PathTemplate.PROFILES_DIR, pProjectDir, pSelector);
+            if (path != null) pDirs.add(new File(path));
+        }
+    }
+
+    private static String resolve(PathTemplate pTemplate, String pProjectDir, CommonProfileSelector pSelector) {
+        if (pTemplate.complex) return null;
+        String path;
+        if (pTemplate.isLiteral()) path = pTemplate.text;
+        else {
+            String[] values = new String[pTemplate.names.length];
+            for (int i = 0; i < values.length; i++) {
+                if (!"basedir".equals(pTemplate.names[i])) return null;
+                values[i] = pProjectDir;
+            }
+            path = pTemplate.format(values);
+        }
+        return pSelector.align(path, new File(pProjectDir));
+    }
+
+    /**
+     * Groups the files by their directory. A directory with more than one file is listed instead (unless it is
+     * already being listed), and the files are answered from the listing.
+     *
+     * @param pFiles the files
+     * @param pDirs the directories that are listed (any new ones are added)
+     * @return the files that still need to be checked on their own
+     */
+    static List<File> group(Collection<File> pFiles, Set<File> pDirs) {
+        Map<File, List<File>> byDir = new LinkedHashMap<>();
+        List<File> single = new ArrayList<>();
+        for (File file : pFiles) {
+            File parent = file.getParentFile();
+            if (parent == null) single.add(file);
+            else if (!pDirs.contains(parent)) byDir.computeIfAbsent(parent, (k) -> new ArrayList<>()).add(file);
+        }
+        for (Map.Entry<File, List<File>> entry : byDir.entrySet()) {
+            if (entry.getValue().size() > 1) pDirs.add(entry.getKey());
+            else single.addAll(entry.getValue());
+        }
+        return single;
+    }
+}
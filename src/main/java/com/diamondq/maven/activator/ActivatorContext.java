@@ -0,0 +1,63 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.profile.ProfileActivationContext;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The context seen by the scripts and the standard activators. It is the original context with the
+ * [DIAMONDQ-PROFILE-ACTIVATOR] system property added, so the existing profile detection can figure out if this extension
+ * is present. The system properties are an overlay rather than a copy, and the same wrapper is reused for as long as the
+ * original context is the same.
+ */
+public final class ActivatorContext implements ProfileActivationContext {
+
+    static final String MARKER_PROPERTY = "[DIAMONDQ-PROFILE-ACTIVATOR]";
+
+    final ProfileActivationContext delegate;
+
+    private volatile OverlayMap systemProperties;
+
+    public ActivatorContext(ProfileActivationContext pDelegate) {
+        delegate = pDelegate;
+    }
+
+    @Override
+    public List<String> getActiveProfileIds() {
+        return delegate.getActiveProfileIds();
+    }
+
+    @Override
+    public List<String> getInactiveProfileIds() {
+        return delegate.getInactiveProfileIds();
+    }
+
+    @Override
+    public Map<String, String> getSystemProperties() {
+
+        /* The original context may be mutable, so the overlay is rebuilt if its system properties are replaced */
+
+        Map<String, String> original = delegate.getSystemProperties();
+        OverlayMap overlay = systemProperties;
+        if ((overlay == null) || (overlay.getDelegate() != original))
+            systemProperties = overlay = new OverlayMap(original, MARKER_PROPERTY, "true");
+        return overlay;
+    }
+
+    @Override
+    public Map<String, String> getUserProperties() {
+        return delegate.getUserProperties();
+    }
+
+    @Override
+    public File getProjectDirectory() {
+        return delegate.getProjectDirectory();
+    }
+
+    @Override
+    public Map<String, String> getProjectProperties() {
+        return delegate.getProjectProperties();
+    }
+}
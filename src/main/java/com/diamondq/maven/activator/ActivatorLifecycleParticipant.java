@@ -0,0 +1,152 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.execution.MavenSession;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells the profile selector when a build session starts and ends. This is only called when the extension is loaded as
+ * a core extension (which is required for profile activation anyway). When it isn't called (for example, inside an
+ * IDE), the selector simply doesn't cache any file system state between dependency validations.
+ * <p>
+ * When {@code -DDiamondQProfileSelectorCache=true} (or a file path) is given, the cached activation results are loaded
+ * when the session starts and saved when it ends (see {@link ActivationCacheFile}).
+ * <p>
+ * When {@code -DDiamondQProfileSelectorReport=true} (or a file path) is given, the metrics of the session are written
+ * to a report when it ends (see {@link ActivationMetrics}), and a summary is logged.
+ * <p>
+ * When {@code -DDiamondQProfileSelectorTrace=true} (or a file path) is given, the selector records trace events for
+ * the session and the most recent ones (see {@code -DDiamondQProfileSelectorTraceSize}) are written when it ends (see
+ * {@link ActivatorTrace}).
+ * <p>
+ * When {@code -DDiamondQProfileSelectorPrewarm=true} is given, the reactor's poms are scanned when the session starts,
+ * and everything their [DIAMONDQ] scripts check is fetched in bulk (see {@link ActivationPrewarmer}).
+ */
+@Named("diamondq-profile-activator")
+@Singleton
+public class ActivatorLifecycleParticipant extends AbstractMavenLifecycleParticipant {
+
+    private static final String DEFAULT_CACHE_FILE = ".mvn/diamondq-activation.cache";
+
+    private static final String DEFAULT_REPORT_FILE = "target/diamondq-activation-report.json";
+
+    private static final String DEFAULT_TRACE_FILE = "target/diamondq-activation-trace.txt";
+
+    private static final int DEFAULT_TRACE_SIZE = 65536;
+
+    private final DiamondQProfileSelector selector;
+
+    /**
+     * The cache file of the current session (null if the persistent cache isn't enabled)
+     */
+    private volatile File cacheFile;
+
+    /**
+     * The report file of the current session (null if the report isn't enabled)
+     */
+    private volatile File reportFile;
+
+    /**
+     * The trace file of the current session (null if tracing isn't enabled)
+     */
+    private volatile File traceFile;
+
+    @Inject
+    public ActivatorLifecycleParticipant(DiamondQProfileSelector pSelector) {
+        selector = pSelector;
+    }
+
+    @Override
+    public void afterSessionStart(MavenSession session) throws MavenExecutionException {
+        CommonProfileSelector commonSelector = selector.getCommonSelector();
+        commonSelector.startSession();
+        cacheFile = getFile(session, "DiamondQProfileSelectorCache", DEFAULT_CACHE_FILE);
+        reportFile = getFile(session, "DiamondQProfileSelectorReport", DEFAULT_REPORT_FILE);
+        traceFile = getFile(session, "DiamondQProfileSelectorTrace", DEFAULT_TRACE_FILE);
+        commonSelector.logger.getTrace().enable(traceFile == null ? 0 : getTraceSize(session));
+        String manifests = getProperty(session, "DiamondQProfileSelectorManifest");
+        if (manifests != null) commonSelector.setManifests(Boolean.parseBoolean(manifests));
+        if (cacheFile != null) commonSelector.loadCache(cacheFile);
+        if (Boolean.parseBoolean(getProperty(session, "DiamondQProfileSelectorPrewarm"))) prewarm(session);
+    }
+
+    @Override
+    public void afterSessionEnd(MavenSession session) throws MavenExecutionException {
+        CommonProfileSelector commonSelector = selector.getCommonSelector();
+        File file = cacheFile;
+        if (file != null) commonSelector.saveCache(file);
+        File report = reportFile;
+        if (report != null) commonSelector.writeReport(report);
+        File trace = traceFile;
+        if (trace != null) commonSelector.writeTrace(trace);
+        commonSelector.endSession();
+    }
+
+    /**
+     * Scans the reactor and fills the selector's file system snapshot
+     *
+     * @param pSession the session
+     */
+    private void prewarm(MavenSession pSession) {
+        File pom = pSession.getRequest().getPom();
+        if (pom == null) return;
+        CommonProfileSelector commonSelector = selector.getCommonSelector();
+        long start = System.nanoTime();
+        Map<File, Set<String>> scripts = ActivationPrewarmer.scanReactor(pom);
+        int calls = commonSelector.prewarm(scripts,
+                CommonProfileSelector.getParallelism(getProperty(pSession, "DiamondQProfileSelectorParallel")));
+        if (commonSelector.logger.isDebugEnabled()) commonSelector.logger.debug(
+                "[DIAMONDQ Profile Activator] Pre-warmed " + calls + " paths for " + scripts.size() + " projects in "
+                        + ((System.nanoTime() - start) / 1_000_000L) + " ms");
+    }
+
+    /**
+     * Returns the number of trace events to keep
+     *
+     * @param pSession the session
+     * @return the number of events
+     */
+    private static int getTraceSize(MavenSession pSession) {
+        String value = getProperty(pSession, "DiamondQProfileSelectorTraceSize");
+        if (value == null) return DEFAULT_TRACE_SIZE;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return DEFAULT_TRACE_SIZE;
+        }
+    }
+
+    private static String getProperty(MavenSession pSession, String pProperty) {
+        return pSession.getUserProperties().getProperty(pProperty,
+                pSession.getSystemProperties().getProperty(pProperty));
+    }
+
+    /**
+     * Returns the file named by a property. A value of 'true' means the default file under the top level project
+     * directory, and any other value is a path (relative to the top level project directory).
+     *
+     * @param pSession the session
+     * @param pProperty the property name
+     * @param pDefaultFile the default file (relative to the top level project directory)
+     * @return the file or null if the property isn't set (or is false)
+     */
+    private static File getFile(MavenSession pSession, String pProperty, String pDefaultFile) {
+        String value = getProperty(pSession, pProperty);
+        if ((value == null) || value.isEmpty() || "false".equalsIgnoreCase(value)) return null;
+        File topDir = pSession.getRequest().getMultiModuleProjectDirectory();
+        if (topDir == null) {
+            String baseDir = pSession.getRequest().getBaseDirectory();
+            topDir = new File(baseDir == null ? "." : baseDir);
+        }
+        if ("true".equalsIgnoreCase(value)) return new File(topDir, pDefaultFile);
+        File file = new File(value);
+        return file.isAbsolute() ? file : new File(topDir, value);
+    }
+}
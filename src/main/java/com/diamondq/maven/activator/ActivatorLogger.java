@@ -7,4 +7,11 @@ public interface ActivatorLogger {
      void warn(String pMsg);
 
     boolean isDebugEnabled();
+
+    /**
+     * Returns the trace that the selector records its events into (see {@link ActivatorTrace})
+     */
+    default ActivatorTrace getTrace() {
+        return ActivatorTrace.NONE;
+    }
 }
@@ -0,0 +1,210 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Profile;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring buffer of typed trace events. Recording an event stores a timestamp, the event type, two references
+ * and a number into preallocated arrays, so nothing is allocated or formatted while tracing (and when the trace is
+ * disabled, recording is a single volatile read). The events are only turned into text when the trace is dumped, and
+ * only the most recent events (up to the capacity) are kept.
+ * <p>
+ * The references must be immutable (or at least not change before the dump), since they are formatted later.
+ * Recording is safe from multiple threads. If the buffer wraps around while a slot is being written, that one event
+ * may be dumped with mixed up values, which is acceptable for a trace.
+ */
+public final class ActivatorTrace {
+
+    /**
+     * A select() call. First is the project directory, value is the number of profiles
+     */
+    public static final int SELECT = 0;
+
+    /**
+     * Watch events were processed. Value is the number of changed paths
+     */
+    public static final int WATCH_EVENTS = 1;
+
+    /**
+     * A dependency validation sweep. Value is the number of evicted results
+     */
+    public static final int VALIDATION = 2;
+
+    /**
+     * A cached result was used. First is the profile id, second is the project directory, value is 1 if active
+     */
+    public static final int CACHE_HIT = 3;
+
+    /**
+     * A script was evaluated. First is the profile id, second is the project directory, value is 1 if active
+     */
+    public static final int EVALUATED = 4;
+
+    /**
+     * An expression was evaluated. First is the expression, second is the profile id, value is 1 if true
+     */
+    public static final int EXPRESSION = 5;
+
+    /**
+     * The profiles were selected. First is the project directory, second is the ids of the active profiles (joined when
+     * the event is recorded, since Maven keeps changing the list), value is the number of active profiles
+     */
+    public static final int ACTIVATED = 6;
+
+    /**
+     * A problem was reported. First is the message
+     */
+    public static final int PROBLEM = 7;
+
+    /**
+     * Changes reported by the embedder were processed. Value is the number of changed paths
+     */
+    public static final int CHANGE_NOTIFICATIONS = 8;
+
+    /**
+     * A trace that can't be enabled (for loggers that don't keep one)
+     */
+    public static final ActivatorTrace NONE = new ActivatorTrace(false);
+
+    private static final class Buffer {
+        final int mask;
+        final long[] times;
+        final int[] types;
+        final Object[] firsts;
+        final Object[] seconds;
+        final long[] values;
+        final AtomicLong next = new AtomicLong();
+
+        Buffer(int pCapacity) {
+            mask = pCapacity - 1;
+            times = new long[pCapacity];
+            types = new int[pCapacity];
+            firsts = new Object[pCapacity];
+            seconds = new Object[pCapacity];
+            values = new long[pCapacity];
+        }
+    }
+
+    private final boolean available;
+
+    /**
+     * The buffer, or null while the trace is disabled
+     */
+    private volatile Buffer buffer;
+
+    public ActivatorTrace() {
+        this(true);
+    }
+
+    private ActivatorTrace(boolean pAvailable) {
+        available = pAvailable;
+    }
+
+    /**
+     * Enables the trace, discarding any previous events
+     *
+     * @param pCapacity the number of events to keep (rounded up to a power of two). Zero or less disables the trace.
+     */
+    public synchronized void enable(int pCapacity) {
+        if (!available || (pCapacity <= 0)) {
+            buffer = null;
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.min(pCapacity, 1 << 24));
+        if (capacity < pCapacity) capacity <<= 1;
+        buffer = new Buffer(capacity);
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Records an event (if the trace is enabled)
+     *
+     * @param pType the event type
+     * @param pFirst the first reference (may be null)
+     * @param pSecond the second reference (may be null)
+     * @param pValue the value
+     */
+    public void record(int pType, Object pFirst, Object pSecond, long pValue) {
+        Buffer b = buffer;
+        if (b == null) return;
+        int slot = (int) (b.next.getAndIncrement() & b.mask);
+        b.times[slot] = System.nanoTime();
+        b.types[slot] = pType;
+        b.firsts[slot] = pFirst;
+        b.seconds[slot] = pSecond;
+        b.values[slot] = pValue;
+    }
+
+    /**
+     * Formats the recorded events, oldest first. The times are in milliseconds since the oldest event.
+     *
+     * @param pOut where to write the events
+     * @return the number of events
+     * @throws IOException if they can't be written
+     */
+    public int dump(Appendable pOut) throws IOException {
+        Buffer b = buffer;
+        if (b == null) return 0;
+        long end = b.next.get();
+        long start = Math.max(0L, end - b.mask - 1);
+        if (end > start) {
+            int first = (int) (start & b.mask);
+            long base = b.times[first];
+            if (start > 0) pOut.append("(").append(Long.toString(start)).append(" earlier events dropped)\n");
+            for (long seq = start; seq < end; seq++) {
+                int slot = (int) (seq & b.mask);
+                pOut.append(String.format(Locale.ROOT, "%12.3f ", (b.times[slot] - base) / 1_000_000.0));
+                pOut.append(format(b.types[slot], b.firsts[slot], b.seconds[slot], b.values[slot])).append('\n');
+            }
+        }
+        return (int) (end - start);
+    }
+
+    private static String format(int pType, Object pFirst, Object pSecond, long pValue) {
+        switch (pType) {
+            case SELECT:
+                return "select " + (pFirst == null ? "(no project directory)" : pFirst) + " (" + pValue + " profiles)";
+            case WATCH_EVENTS:
+                return "  " + pValue + " watched paths changed";
+            case VALIDATION:
+                return "  dependencies validated, " + pValue + " results evicted";
+            case CACHE_HIT:
+                return "  " + pFirst + " is cached as " + (pValue != 0 ? "active" : "inactive");
+            case EVALUATED:
+                return "  " + pFirst + " is " + (pValue != 0 ? "active" : "inactive");
+            case EXPRESSION:
+                return "    " + pSecond + ": " + pFirst + " -> " + (pValue != 0);
+            case ACTIVATED:
+                return "  activated in " + (pFirst == null ? "(no project directory)" : pFirst) + ": "
+                        + (pValue == 0 ? "(none)" : pSecond);
+            case PROBLEM:
+                return "  problem: " + pFirst;
+            case CHANGE_NOTIFICATIONS:
+                return "  " + pValue + " reported paths changed";
+            default:
+                return "  unknown event " + pType;
+        }
+    }
+
+    /**
+     * Returns the ids of the profiles separated by commas
+     *
+     * @param pProfiles the profiles
+     * @return the ids
+     */
+    static String joinIds(Collection<?> pProfiles) {
+        StringBuilder sb = new StringBuilder();
+        for (Object profile : pProfiles) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(profile instanceof Profile ? ((Profile) profile).getId() : profile);
+        }
+        return sb.toString();
+    }
+}
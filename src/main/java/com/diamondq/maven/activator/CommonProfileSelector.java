@@ -1,7 +1,5 @@
 package com.diamondq.maven.activator;
 
-import org.apache.maven.model.Activation;
-import org.apache.maven.model.ActivationProperty;
 import org.apache.maven.model.InputLocation;
 import org.apache.maven.model.Profile;
 import org.apache.maven.model.building.ModelProblem;
@@ -10,129 +8,601 @@ import org.apache.maven.model.building.ModelProblemCollectorRequest;
 import org.apache.maven.model.path.PathTranslator;
 import org.apache.maven.model.profile.ProfileActivationContext;
 import org.apache.maven.model.profile.activation.ProfileActivator;
-import org.apache.maven.model.profile.activation.PropertyProfileActivator;
 import org.codehaus.plexus.interpolation.AbstractValueSource;
 import org.codehaus.plexus.interpolation.MapBasedValueSource;
 import org.codehaus.plexus.interpolation.RegexBasedInterpolator;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.nio.file.Paths;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CommonProfileSelector {
     private final List<ProfileActivator> activatorList;
     /**
-     * This holds a set of dependencies that need to be checked whenever the profile activation context changes. If the
-     * dependencies 'fail', then the cachedActiveProfiles are no longer valid
+     * The cached results of the profiles, per project directory. Each result holds the dependencies that need to be
+     * checked whenever the profile activation context changes. If a dependency 'fails', then that result is no longer
+     * valid
      */
-    private final List<Dependency> dependencies;
+    private final ActivationCache cache;
     /**
-     * The set of profiles that are known to be active
+     * Every unique dependency check referenced by the cached results
      */
-    private final Set<String> cachedActiveProfiles;
+    final DependencyStore dependencyStore;
     /**
-     * The set of profiles that are known to be inactive
+     * The file system state shared by the scripts and the dependency checks
      */
-    private final Set<String> cachedInactiveProfiles;
+    final FileSystemSnapshot fileSystem;
+    /**
+     * The project directories and their ancestors (used by profile() to find the parentProfiles directories)
+     */
+    final DirectoryTree directoryTree;
+    /**
+     * The counters and timers of the current session
+     */
+    private final ActivationMetrics metrics;
     /**
      * A pointer to the last context
      */
-    private WeakReference<ProfileActivationContext> lastProfileActiveContext;
+    private volatile WeakReference<ProfileActivationContext> lastProfileActiveContext;
+    /**
+     * The wrapper of the last context (reused for as long as the context is the same)
+     */
+    private volatile ActivatorContext lastActivatorContext;
     public final ActivatorLogger logger;
     private final PathTranslator pathTranslator;
+    /**
+     * The compiled scripts
+     */
+    private final ScriptParser scriptParser;
+    /**
+     * Watches the directories behind the file dependencies (only in watch mode, and created on first use)
+     */
+    private DependencyWatcher watcher;
+    private boolean watcherUnavailable;
+    /**
+     * Evaluates the profiles in parallel mode (created on first use)
+     */
+    private Executor executor;
+    private int executorThreads;
+    /**
+     * The virtual thread per task executor on Java 21+ (created on first use), which the parallel mode executor limits
+     */
+    private Executor virtualThreads;
+    private boolean virtualThreadsUnavailable;
+    /**
+     * Cleared by the garbage collector when memory runs low, which releases everything that has been cached
+     */
+    private volatile SoftReference<Object> memoryPressure = new SoftReference<>(new Object());
+    /**
+     * Held while the dependency store is compacted (or the cache is saved), since the ids change
+     */
+    private final Object compactionLock = new Object();
+    /**
+     * The number of dependencies at which the store is next compacted
+     */
+    private volatile int compactAt = MIN_COMPACTION;
+    private volatile long lastAgeTrim;
+    /**
+     * True if the embedder reports every change (see {@link #setChangeNotifications(boolean)})
+     */
+    private volatile boolean changeNotifications;
+    /**
+     * The paths reported by {@link #pathsChanged(Collection)} that haven't been processed yet
+     */
+    private final Queue<File> changedPaths = new ConcurrentLinkedQueue<>();
+    /**
+     * Set when the next select() call has to check every dependency, even with change notifications
+     */
+    private final AtomicBoolean sweepPending = new AtomicBoolean();
+
+    /**
+     * The number of threads for parallel mode when it is just enabled
+     */
+    private static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * The default number of cached results to keep
+     */
+    private static final int DEFAULT_MAX_RESULTS = 100_000;
+
+    /**
+     * The dependency store isn't compacted until it has at least this many dependencies
+     */
+    private static final int MIN_COMPACTION = 4096;
 
     public CommonProfileSelector(List<ProfileActivator> pActivatorList, ActivatorLogger pLogger, PathTranslator pPathTranslator) {
         activatorList = pActivatorList;
         logger = pLogger;
         pathTranslator = pPathTranslator;
-        dependencies = new ArrayList<>();
         lastProfileActiveContext = new WeakReference<>(null);
-        cachedActiveProfiles = new HashSet<>();
-        cachedInactiveProfiles = new HashSet<>();
+        cache = new ActivationCache();
+        dependencyStore = new DependencyStore();
+        fileSystem = new FileSystemSnapshot();
+        directoryTree = new DirectoryTree();
+        scriptParser = new ScriptParser();
+        metrics = new ActivationMetrics(cache, fileSystem);
+    }
+
+    /**
+     * Called when a build session starts. Within a session, the file system is assumed not to change underneath the
+     * activation scripts.
+     */
+    public void startSession() {
+        fileSystem.startSession();
+        metrics.reset();
+    }
+
+    /**
+     * Called when a build session ends
+     */
+    public void endSession() {
+        fileSystem.endSession();
+        lastActivatorContext = null;
+        if (logger.isDebugEnabled()) {
+            logger.debug("[DIAMONDQ Profile Activator] " + cache.getStatistics());
+            logger.debug("[DIAMONDQ Profile Activator] " + fileSystem.getStatistics());
+            logger.debug("[DIAMONDQ Profile Activator] " + metrics.getSummary());
+            DependencyWatcher currentWatcher = getWatcher();
+            if (currentWatcher != null)
+                logger.debug("[DIAMONDQ Profile Activator] " + currentWatcher.getStatistics());
+        }
+    }
+
+    /**
+     * Enables (or disables) change notifications, for an embedder (such as an IDE) that already knows when files
+     * change. The embedder reports every file or directory that is created, changed or deleted through
+     * {@link #pathsChanged(Collection)}, and in return a new context no longer means checking every dependency again.
+     * The dependencies are checked once more by the next select() call after enabling, since the earlier changes
+     * weren't reported.
+     *
+     * @param pEnabled true if the embedder reports every change
+     */
+    public void setChangeNotifications(boolean pEnabled) {
+        if (pEnabled && !changeNotifications) sweepPending.set(true);
+        changeNotifications = pEnabled;
+    }
+
+    /**
+     * Reports paths that were created, changed or deleted (for a deleted directory, the paths within it need to be
+     * reported as well). The next select() call checks the dependencies on the paths (and on the directories that
+     * contain them), and evicts only the results that depended on a failed one. This works with or without change
+     * notifications enabled.
+     *
+     * @param pPaths the paths
+     */
+    public void pathsChanged(Collection<File> pPaths) {
+        for (File path : pPaths)
+            changedPaths.add(path.getAbsoluteFile());
+    }
+
+    /**
+     * Reports user or system properties whose values have changed. A cached result is checked against the properties
+     * of the context whenever it is used, so this only evicts the results that read any of them sooner.
+     *
+     * @param pNames the property names
+     */
+    public void propertiesChanged(Collection<String> pNames) {
+        int evicted = cache.invalidateProperties(new HashSet<>(pNames));
+        if (logger.isDebugEnabled() && (evicted > 0)) logger.debug("[DIAMONDQ Profile Activator] " + evicted
+                + " cached results read a changed property and have been cleared");
+    }
+
+    /**
+     * Sets whether the manifests of the profiles directories are used (see {@link ProfilesIndex#MANIFEST}). The setting
+     * stays until it is changed again, or until a context sets the DiamondQProfileSelectorManifest property.
+     *
+     * @param pManifests true to use the manifests
+     */
+    public void setManifests(boolean pManifests) {
+        fileSystem.setManifests(pManifests);
+    }
+
+    /**
+     * Loads the cached results saved by a previous Maven invocation. This only happens when nothing has been cached yet
+     * (a long-running process has better results in memory). The loaded results are checked by the next validation
+     * sweep like any other.
+     *
+     * @param pFile the cache file
+     */
+    public void loadCache(File pFile) {
+        if ((cache.size() != 0) || !pFile.isFile()) return;
+        try {
+            int loaded = ActivationCacheFile.load(pFile, cache, dependencyStore);
+            lastProfileActiveContext = new WeakReference<>(null);
+            sweepPending.set(true);
+            if (logger.isDebugEnabled())
+                logger.debug("[DIAMONDQ Profile Activator] Loaded " + loaded + " cached results from " + pFile);
+        } catch (IOException | RuntimeException ex) {
+            cache.clear();
+            dependencyStore.clear();
+            logger.warn("[DIAMONDQ Profile Activator] Ignoring the activation cache " + pFile + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Saves the cached results for the next Maven invocation
+     *
+     * @param pFile the cache file
+     */
+    public void saveCache(File pFile) {
+        try {
+            int saved;
+            synchronized (compactionLock) {
+                saved = ActivationCacheFile.save(pFile, cache, dependencyStore);
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("[DIAMONDQ Profile Activator] Saved " + saved + " cached results to " + pFile);
+        } catch (IOException ex) {
+            logger.warn("[DIAMONDQ Profile Activator] Unable to save the activation cache " + pFile + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * Fills the file system snapshot with what the scripts are going to check, before model building asks for the
+     * first profile. The profiles and parentProfiles directories are listed, and so is any directory with more than one
+     * checked file; the remaining files are checked on their own. It all runs on the parallel mode executor, so the
+     * calls overlap, but no more than the given number at a time. This only helps within a session (outside one,
+     * nothing is kept).
+     *
+     * @param pScripts the [DIAMONDQ] scripts keyed by project directory
+     * @param pThreads the number of calls at a time (the parallel mode setting, or zero for the default)
+     * @return the number of file system calls that were made
+     */
+    public int prewarm(Map<File, ? extends Collection<String>> pScripts, int pThreads) {
+        if (!fileSystem.isInSession()) return 0;
+        Set<File> files = new LinkedHashSet<>();
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Map.Entry<File, ? extends Collection<String>> entry : pScripts.entrySet()) {
+            String projectDir = align("", entry.getKey());
+            for (String script : entry.getValue())
+                ActivationPrewarmer.collect(scriptParser.compile(script), projectDir, this, files, dirs);
+        }
+        List<File> single = ActivationPrewarmer.group(files, dirs);
+
+        Executor prewarmExecutor = getExecutor(pThreads > 0 ? pThreads : DEFAULT_PARALLELISM);
+        List<FutureTask<?>> tasks = new ArrayList<>(dirs.size() + single.size());
+        for (File dir : dirs)
+            tasks.add(new FutureTask<>(() -> fileSystem.index(dir)));
+        for (File file : single)
+            tasks.add(new FutureTask<>(() -> fileSystem.exists(file)));
+        for (FutureTask<?> task : tasks) {
+            try {
+                prewarmExecutor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.run();
+            }
+        }
+        for (FutureTask<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ignored) {
+
+                /* The path will simply be checked again when a script needs it */
+
+            }
+        }
+        return tasks.size();
+    }
+
+    /**
+     * Aligns a path to the project directory
+     *
+     * @param pPath the path
+     * @param pBasedir the project directory
+     * @return the aligned path
+     */
+    String align(String pPath, File pBasedir) {
+        return pathTranslator.alignToBaseDirectory(pPath, pBasedir);
+    }
+
+    /**
+     * Writes the metrics of the current session to a report (JSON, or CSV if the file name ends with .csv), and logs
+     * the summary
+     *
+     * @param pFile the report file
+     */
+    public void writeReport(File pFile) {
+        logger.info("[DIAMONDQ Profile Activator] " + metrics.getSummary());
+        try {
+            metrics.write(pFile);
+            logger.info("[DIAMONDQ Profile Activator] Activation report written to " + pFile);
+        } catch (IOException ex) {
+            logger.warn("[DIAMONDQ Profile Activator] Unable to write the activation report " + pFile + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the recorded trace events (see {@link ActivatorTrace})
+     *
+     * @param pFile the trace file
+     */
+    public void writeTrace(File pFile) {
+        try {
+            File parent = pFile.getAbsoluteFile().getParentFile();
+            if (parent != null) Files.createDirectories(parent.toPath());
+            int events;
+            try (Writer writer = Files.newBufferedWriter(pFile.toPath(), StandardCharsets.UTF_8)) {
+                events = logger.getTrace().dump(writer);
+            }
+            logger.info("[DIAMONDQ Profile Activator] " + events + " trace events written to " + pFile);
+        } catch (IOException ex) {
+            logger.warn("[DIAMONDQ Profile Activator] Unable to write the trace " + pFile + ": " + ex.getMessage());
+        }
+    }
+
+    public ActivationMetrics getMetrics() {
+        return metrics;
+    }
+
+    private synchronized DependencyWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Returns the watcher if watch mode is enabled. The watcher is created when watch mode is first seen, and closed if
+     * watch mode is later turned off.
+     *
+     * @param pEnabled true if watch mode is enabled
+     * @return the watcher or null
+     */
+    private synchronized DependencyWatcher getWatcher(boolean pEnabled) {
+        if (!pEnabled) {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException ignored) {
+                }
+                watcher = null;
+            }
+            return null;
+        }
+        if ((watcher == null) && !watcherUnavailable) {
+            try {
+                watcher = new DependencyWatcher();
+
+                /* Nothing has been watched by this watcher yet */
+
+                dependencyStore.resetWatches();
+            } catch (IOException | UnsupportedOperationException ex) {
+                watcherUnavailable = true;
+                logger.warn("[DIAMONDQ Profile Activator] Unable to watch the file system (" + ex.getMessage()
+                        + "). Dependencies will be checked whenever the context changes.");
+            }
+        }
+        return watcher;
+    }
+
+    /**
+     * Processes the pending watch events. Only the dependencies on the changed paths are checked again, and only the
+     * results that depended on a failed one are evicted.
+     *
+     * @param pWatcher the watcher
+     * @param pContext the context
+     * @param pSelectorDebug true if debugging
+     * @param pTrace the trace
+     * @return false if events may have been lost, in which case every dependency needs to be checked
+     */
+    private boolean processWatchEvents(DependencyWatcher pWatcher, ProfileActivationContext pContext,
+                                       boolean pSelectorDebug, ActivatorTrace pTrace) {
+        List<File> changed = new ArrayList<>();
+        boolean complete = pWatcher.poll(changed);
+        if (!changed.isEmpty()) {
+            pTrace.record(ActivatorTrace.WATCH_EVENTS, null, null, changed.size());
+            if (!processChanges(changed, pWatcher, pSelectorDebug)) complete = false;
+        }
+        if (!complete) {
+            if (pSelectorDebug)
+                logger.info("[DIAMONDQ Profile Activator]   Watch events may have been lost. Checking everything.");
+            dependencyStore.resetWatches();
+        }
+        return complete;
+    }
+
+    /**
+     * Processes the paths reported by {@link #pathsChanged(Collection)}
+     *
+     * @param pWatcher the watcher (null if not in watch mode)
+     * @param pSelectorDebug true if debugging
+     * @param pTrace the trace
+     * @return false if every dependency needs to be checked
+     */
+    private boolean processNotifications(DependencyWatcher pWatcher, boolean pSelectorDebug, ActivatorTrace pTrace) {
+        List<File> changed = new ArrayList<>();
+        for (File path = changedPaths.poll(); path != null; path = changedPaths.poll())
+            changed.add(path);
+        if (changed.isEmpty()) return true;
+        pTrace.record(ActivatorTrace.CHANGE_NOTIFICATIONS, null, null, changed.size());
+        return processChanges(changed, pWatcher, pSelectorDebug);
+    }
+
+    /**
+     * Checks the dependencies on changed paths again, and evicts the results that depended on a failed one
+     *
+     * @param pChanged the changed paths
+     * @param pWatcher the watcher (null if not in watch mode)
+     * @param pSelectorDebug true if debugging
+     * @return false if the store was compacted (or cleared) meanwhile, in which case every dependency needs to be
+     * checked
+     */
+    private boolean processChanges(List<File> pChanged, DependencyWatcher pWatcher, boolean pSelectorDebug) {
+
+        /*
+         * A change to a path affects the checks on the path itself, and the prefix checks on the directory that
+         * contains it
+         */
+
+        int generation = dependencyStore.getGeneration();
+        BitSet affected = new BitSet();
+        for (File path : pChanged) {
+            fileSystem.invalidate(path);
+            dependencyStore.dependenciesOn(path.getPath(), affected);
+            File parent = path.getParentFile();
+            if (parent != null) dependencyStore.dependenciesOn(parent.getPath(), affected);
+        }
+        if (!affected.isEmpty()) {
+            BitSet failed = dependencyStore.revalidate(affected, fileSystem);
+            int evicted = cache.invalidate(failed);
+            if (pSelectorDebug) logger.info("[DIAMONDQ Profile Activator]   " + pChanged.size()
+                    + " paths changed, affecting " + affected.cardinality() + " dependencies. " + evicted
+                    + " cached results have been cleared");
+
+            /* The dependencies that are still valid may need a different watch now (ie. a directory was created) */
+
+            if (pWatcher != null) {
+                affected.andNot(failed);
+                for (int id = affected.nextSetBit(0); id >= 0; id = affected.nextSetBit(id + 1))
+                    watchDependency(pWatcher, generation, id);
+            }
+        }
+
+        /* If the store was compacted (or cleared) meanwhile, the ids were for the wrong dependencies */
+
+        return dependencyStore.getGeneration() == generation;
+    }
+
+    private void watchDependency(DependencyWatcher pWatcher, int pGeneration, int pId) {
+        File[] candidates = dependencyStore.watchCandidates(pGeneration, pId);
+        if (candidates == null) return;
+        for (File candidate : candidates) {
+            if (pWatcher.watch(candidate)) {
+                dependencyStore.watchRegistered(pGeneration, pId);
+                return;
+            }
+        }
     }
 
     public List<Profile> select(Collection<Profile> profiles, ProfileActivationContext context, ModelProblemCollector problems) {
+        long start = System.nanoTime();
+        cache.setClock(start);
+        ActivatorTrace trace = logger.getTrace();
+        trace.record(ActivatorTrace.SELECT, context.getProjectDirectory(), null, profiles.size());
 
         /* Get a debug flag from the system properties */
 
         boolean selectorDebug =
                 Boolean.parseBoolean(context.getSystemProperties().getOrDefault("DiamondQProfileSelectorDebug", "false"));
-        if (selectorDebug) logger.info("[DIAMONDQ Profile Activator] getActiveProfiles([" + profiles.stream()
-                .map(Profile::getId)
-                .collect(Collectors.joining(
-                        ", "))
-                + "], ..., ...)");
-        try {
+        if (selectorDebug) logger.info("[DIAMONDQ Profile Activator] getActiveProfiles(["
+                + ActivatorTrace.joinIds(profiles) + "], ..., ...)");
 
-            /*
-             * To allow the existing profile detection to figure out if this extension is present,
-             * inject a custom property
-             */
+        /* Watch mode is only useful for long-running processes (such as the Maven daemon) */
 
-            ProfileActivationContext updatedContext = new ProfileActivationContext() {
+        boolean watchMode =
+                Boolean.parseBoolean(context.getSystemProperties().getOrDefault("DiamondQProfileSelectorWatch", "false"));
 
-                @Override
-                public List<String> getActiveProfileIds() {
-                    return context.getActiveProfileIds();
-                }
+        /* Parallel mode evaluates the profiles that aren't cached at the same time (but not while debugging) */
 
-                @Override
-                public List<String> getInactiveProfileIds() {
-                    return context.getInactiveProfileIds();
-                }
+        int parallelism = getParallelism(context.getSystemProperties().get("DiamondQProfileSelectorParallel"));
 
-                @Override
-                public Map<String, String> getSystemProperties() {
-                    Map<String, String> systemProperties = new HashMap<>(context.getSystemProperties());
-                    systemProperties.put("[DIAMONDQ-PROFILE-ACTIVATOR]", "true");
-                    return Collections.unmodifiableMap(systemProperties);
-                }
-
-                @Override
-                public Map<String, String> getUserProperties() {
-                    return context.getUserProperties();
-                }
+        /* The profiles directories may have manifests (only when set, so that setManifests() isn't overridden) */
 
-                @Override
-                public File getProjectDirectory() {
-                    return context.getProjectDirectory();
-                }
+        String manifests = context.getSystemProperties().get("DiamondQProfileSelectorManifest");
+        if (manifests != null) fileSystem.setManifests(Boolean.parseBoolean(manifests));
+        try {
 
-                @Override
-                public Map<String, String> getProjectProperties() {
-                    return context.getProjectProperties();
-                }
-            };
+            /*
+             * To allow the existing profile detection to figure out if this extension is present,
+             * inject a custom property
+             */
 
-            /* Check if the context has changed */
+            if (memoryPressure.get() == null) releaseMemory();
 
-            ProfileActivationContext lastContext = lastProfileActiveContext.get();
-            if (context != lastContext) {
-                boolean valid = true;
+            ActivatorContext updatedContext = lastActivatorContext;
+            if ((updatedContext == null) || (updatedContext.delegate != context))
+                lastActivatorContext = updatedContext = new ActivatorContext(context);
 
-                if (selectorDebug)
-                    logger.info("[DIAMONDQ Profile Activator]   Context has changed. Checking all " + dependencies.size() + " dependencies...");
+            /* Check if the context has changed */
 
-                /* Need to check all the dependencies */
+            DependencyWatcher activeWatcher = getWatcher(watchMode);
+            boolean checkAll = (activeWatcher != null) && !processWatchEvents(activeWatcher, updatedContext,
+                    selectorDebug, trace);
+            if (!processNotifications(activeWatcher, selectorDebug, trace)) checkAll = true;
 
-                for (Dependency dependency : dependencies)
-                    if (!dependency.isValid(updatedContext, null)) {
-                        valid = false;
-                        break;
-                    }
+            /* With change notifications, a new context doesn't need the dependencies to be checked */
 
-                if (!valid) {
-                    cachedActiveProfiles.clear();
-                    cachedInactiveProfiles.clear();
-                    dependencies.clear();
-                    if (selectorDebug) logger.info(
-                            "[DIAMONDQ Profile Activator]   A dependency is no longer valid. All cached profiles have been cleared");
+            ProfileActivationContext lastContext = lastProfileActiveContext.get();
+            boolean pending = sweepPending.get();
+            if (pending) checkAll = true;
+            if (changeNotifications && !checkAll && (context != lastContext) && !dependencyStore.isFull()) {
+                if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   Context has changed, but changes are "
+                        + "reported by the embedder. Only the results that can't outlive the context are cleared.");
+
+                /* A result that depends on the fail check (ie. an unresolvable path) is only valid for its context */
+
+                BitSet failing = new BitSet();
+                dependencyStore.failDependencies(failing);
+                if (!failing.isEmpty()) {
+                    int evicted = cache.invalidate(dependencyStore.revalidate(failing, fileSystem));
+                    trace.record(ActivatorTrace.VALIDATION, null, null, evicted);
+                }
+                trim(selectorDebug, context, start);
+                lastProfileActiveContext = new WeakReference<>(context);
+            } else if ((context != lastContext) || checkAll) {
+
+                if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   Context has changed. Checking the "
+                        + dependencyStore.size() + " dependencies of " + cache.size() + " cached results...");
+
+                /* Need to check every unique dependency once, and then evict the results that depended on a failure */
+
+                long validationStart = System.nanoTime();
+                int evicted = 0;
+                int generation;
+                do {
+
+                    /* If the store was compacted during the sweep, the failures were found under the old ids */
+
+                    generation = dependencyStore.getGeneration();
+                    if (dependencyStore.isFull()) {
+                        evicted += cache.size();
+                        cache.clear();
+                        dependencyStore.clear();
+                    } else if (activeWatcher != null) {
+
+                        /* The watched dependencies don't need to be checked, since their changes arrive as events */
+
+                        if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   "
+                                + dependencyStore.watchedSize() + " dependencies are watched and don't need to be checked");
+                        BitSet unwatched = new BitSet();
+                        evicted += cache.invalidate(dependencyStore.validateUnwatched(fileSystem, unwatched));
+                        for (int id = unwatched.nextSetBit(0); id >= 0; id = unwatched.nextSetBit(id + 1))
+                            watchDependency(activeWatcher, generation, id);
+                    } else evicted += cache.invalidate(dependencyStore.validate(fileSystem));
+                } while ((generation != dependencyStore.getGeneration()) && !dependencyStore.isFull()
+                        && (cache.size() > 0));
+                metrics.recordValidation(evicted, System.nanoTime() - validationStart);
+                trace.record(ActivatorTrace.VALIDATION, null, null, evicted);
+                trim(selectorDebug, context, start);
+
+                if (evicted > 0) {
+                    if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   " + evicted
+                            + " cached results had a dependency that is no longer valid and have been cleared");
                 } else {
                     if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   All dependencies are still valid.");
                 }
                 lastProfileActiveContext = new WeakReference<>(context);
+                if (pending) sweepPending.set(false);
             }
 
             /* Log the context profile ids */
@@ -146,27 +616,53 @@ public class CommonProfileSelector {
                         + Arrays.toString(updatedContext.getActiveProfileIds().toArray()));
                 logger.info("[DIAMONDQ Profile Activator]   Context: Inactive Profile Ids: "
                         + Arrays.toString(updatedContext.getInactiveProfileIds().toArray()));
+                logger.info("[DIAMONDQ Profile Activator]   " + cache.getStatistics());
+                logger.info("[DIAMONDQ Profile Activator]   " + fileSystem.getStatistics());
+                if (activeWatcher != null)
+                    logger.info("[DIAMONDQ Profile Activator]   " + activeWatcher.getStatistics());
             }
 
+            /* The results of the sub-expressions that the profiles share */
+
+            ExpressionMemo memo = new ExpressionMemo(dependencyStore.getGeneration());
+
+            Profile[] ordered = profiles.toArray(new Profile[0]);
+            ProfileDescriptor[] descriptors = new ProfileDescriptor[ordered.length];
+            for (int i = 0; i < ordered.length; i++)
+                descriptors[i] = ProfileDescriptor.of(ordered[i], activatorList, updatedContext, problems);
+
             List<Profile> activeProfileList = new ArrayList<>();
-            for (Profile profile : profiles) {
+            if ((parallelism > 0) && !selectorDebug && (ordered.length > 1))
+                selectParallel(getExecutor(parallelism), trace, memo.generation, activeWatcher, ordered, descriptors,
+                        updatedContext, problems, activeProfileList);
+            else for (int i = 0; i < ordered.length; i++) {
+                Profile profile = ordered[i];
                 if (selectorDebug)
                     logger.info("[DIAMONDQ Profile Activator]   Checking if profile " + profile.getId() + " is active?");
 
                 /* Check if this profile should be activated */
 
-                if (hasActive(selectorDebug, profile, updatedContext, problems)) {
+                if (hasActive(selectorDebug, trace, memo, activeWatcher, profile, descriptors[i], updatedContext,
+                        problems)) {
                     if (selectorDebug)
                         logger.info("[DIAMONDQ Profile Activator]     Activating profile " + profile.getId());
                     activeProfileList.add(profile);
                 }
             }
-            activeProfileList.addAll(getActiveProfiles(profiles, updatedContext, problems));
-            if (selectorDebug || ((logger.isDebugEnabled()) && (!activeProfileList.isEmpty()))) {
-                String message = "[DIAMONDQ Profile Activator] Activated profiles: " + activeProfileList.stream()
-                        .map(Profile::getId)
-                        .collect(Collectors.joining(
-                                ", "));
+            if (memo.getHits() > 0) {
+                metrics.recordReusedExpressions(memo.getHits());
+                if (selectorDebug) logger.info("[DIAMONDQ Profile Activator]   " + memo.getHits()
+                        + " sub-expression results were reused between the profiles");
+            }
+            activeProfileList.addAll(getActiveProfiles(ordered, descriptors, updatedContext, problems));
+            if (trace.isEnabled()) trace.record(ActivatorTrace.ACTIVATED, context.getProjectDirectory(),
+                    ActivatorTrace.joinIds(activeProfileList), activeProfileList.size());
+
+            /* Under -X this is logged for every select, so it isn't worth building unless something was activated */
+
+            if (selectorDebug || ((!activeProfileList.isEmpty()) && (logger.isDebugEnabled()))) {
+                String message =
+                        "[DIAMONDQ Profile Activator] Activated profiles: " + ActivatorTrace.joinIds(activeProfileList);
                 if (selectorDebug) logger.info(message);
                 else logger.debug(message);
             }
@@ -175,369 +671,456 @@ public class CommonProfileSelector {
         } catch (RuntimeException ex) {
             if (selectorDebug) logger.error("[DIAMONDQ Profile Activator] Unexpected exception", ex);
             throw ex;
+        } finally {
+            metrics.recordSelect(context.getProjectDirectory(), System.nanoTime() - start);
         }
     }
 
-    private boolean hasActive(boolean pSelectorDebug, Profile profile, ProfileActivationContext context,
-                              ModelProblemCollector problems) {
+    private boolean hasActive(boolean pSelectorDebug, ActivatorTrace pTrace, ExpressionMemo pMemo,
+                              DependencyWatcher pWatcher, Profile profile, ProfileDescriptor descriptor,
+                              ProfileActivationContext context, ModelProblemCollector problems) {
 
-        /* Start by checking the cache */
+        /* Only the [DIAMONDQ] profiles are activated here */
 
-        String profileId = profile.getId();
-        if (cachedActiveProfiles.contains(profileId)) {
-            if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Cached active profile found");
-            return true;
-        }
-        if (cachedInactiveProfiles.contains(profileId)) {
-            if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Cached inactive profile found");
-            return false;
-        }
+        if (descriptor.script == null) return false;
 
-        /* Check if this is one of the profiles that can be verified? */
+        /* Start by checking the cache */
 
-        boolean result = false;
-        for (ProfileActivator activator : activatorList) {
-            if (activator instanceof PropertyProfileActivator) {
-                if (activator.presentInConfig(profile, context, problems)) {
+        ActivationCache.Entry cached = getCached(pSelectorDebug, pTrace, profile, descriptor, context);
+        if (cached != null) return cached.active;
+        return evaluate(pSelectorDebug, pTrace, pMemo.generation, pMemo, pWatcher, profile, descriptor, context,
+                problems);
+    }
 
-                    Activation activation = profile.getActivation();
+    /**
+     * Returns the cached result of a profile, if it is still valid for the context
+     *
+     * @return the cached entry or null
+     */
+    private ActivationCache.Entry getCached(boolean pSelectorDebug, ActivatorTrace pTrace, Profile pProfile,
+                                            ProfileDescriptor pDescriptor, ProfileActivationContext pContext) {
+        String profileId = pProfile.getId();
+        File projectDir = pContext.getProjectDirectory();
+        ActivationCache.Entry cached = cache.get(projectDir, profileId);
+        if ((cached != null) && Objects.equals(cached.script, pDescriptor.script) && cached.matchesProperties(
+                pContext)) {
+            if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Cached "
+                    + (cached.active ? "active" : "inactive") + " profile found");
+            pTrace.record(ActivatorTrace.CACHE_HIT, profileId, projectDir, cached.active ? 1 : 0);
+            cache.recordLookup(cached);
+            return cached;
+        }
 
-                    if (activation == null) return false;
+        /* A result for a different script or different property values is a miss */
 
-                    ActivationProperty property = activation.getProperty();
+        cache.recordLookup(null);
+        return null;
+    }
 
-                    if (property == null) return false;
+    /**
+     * Evaluates a [DIAMONDQ] profile and caches the result
+     *
+     * @param pGeneration the generation of the dependency store before anything was evaluated
+     * @param pMemo the memo of the select() call (null if there isn't one)
+     * @return true if the profile is active
+     */
+    private boolean evaluate(boolean pSelectorDebug, ActivatorTrace pTrace, int pGeneration, ExpressionMemo pMemo,
+                             DependencyWatcher pWatcher, Profile profile, ProfileDescriptor descriptor,
+                             ProfileActivationContext context, ModelProblemCollector problems) {
+        String profileId = profile.getId();
+        File projectDir = context.getProjectDirectory();
 
-                    String name = property.getName();
-                    if (!name.equals("[DIAMONDQ]")) return false;
+        /* Get the compiled script (including the automatic skip check) */
 
-                    String script = property.getValue();
+        Expression script = descriptor.getExpression(scriptParser, profileId);
 
-                    /* Add a property check for automatic skipping */
+        if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Resolving " + script);
 
-                    script = "and(not(property(skip" + profile.getId() + "=true)), " + script + ")";
+        /* Evaluate the script */
 
-                    if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Resolving " + script);
+        long evaluationStart = System.nanoTime();
+        Evaluation evaluation = new Evaluation(this, profile, context, problems, descriptor.location, pSelectorDebug,
+                pMemo, isReordering(context));
+        boolean result = evaluation.evaluate(script);
+        metrics.recordEvaluation(profileId, System.nanoTime() - evaluationStart);
+        pTrace.record(ActivatorTrace.EVALUATED, profileId, projectDir, result ? 1 : 0);
+        int[] dependencies = evaluation.problemCount == 0 ? evaluation.getDependencies() : null;
+        PropertyFingerprint properties = evaluation.getPropertyFingerprint();
 
-                    /* Recursively check */
+        /* Cache the result (unless there was a problem, which needs to be reported every time) */
 
-                    result = recursiveProcess(pSelectorDebug, profile, context, problems, property.getLocation(""), script);
-                }
-            }
-        }
+        if (dependencies != null) {
+            ActivationCache.Entry entry = cache.put(projectDir, profileId, descriptor.script, properties, result,
+                    dependencies, pGeneration);
 
-        /* Cache the result */
+            /* If a dependency was invalidated by another thread while this was evaluating, don't keep the result */
 
-        if (result) cachedActiveProfiles.add(profileId);
-        else cachedInactiveProfiles.add(profileId);
+            if (!dependencyStore.isCurrent(pGeneration, dependencies)) cache.remove(projectDir, profileId, entry);
+            else if (pWatcher != null) for (int dependency : dependencies)
+                watchDependency(pWatcher, pGeneration, dependency);
+        }
         return result;
     }
 
-    private boolean recursiveProcess(boolean pSelectorDebug, Profile pProfile, ProfileActivationContext pContext,
-                                     ModelProblemCollector pProblems, InputLocation pPropertyLocation, String pScript) {
-        if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   recursiveProcess(" + pScript + ")");
-
-        /* Look for the first opening bracket */
-
-        int offset = pScript.indexOf('(');
-        if (offset == -1) {
-            pProblems.add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE).setMessage(
-                    "[DIAMONDQ Profile Activator] Unable to parse script when activating the profile " + pProfile.getId()).setLocation(pPropertyLocation));
-            return false;
+    /**
+     * Applies the size and age limits of the cached results, and compacts the dependency store once it has doubled
+     * since it was last compacted (or results were trimmed). The age limit is only checked once a minute.
+     *
+     * @param pSelectorDebug true if debugging
+     * @param pContext the context
+     * @param pNow the current time
+     * @return the number of results that were evicted
+     */
+    private int trim(boolean pSelectorDebug, ProfileActivationContext pContext, long pNow) {
+        int maxResults = (int) getLimit(pContext.getSystemProperties().get("DiamondQProfileSelectorMaxResults"),
+                DEFAULT_MAX_RESULTS);
+        long maxAge = TimeUnit.MINUTES.toNanos(
+                getLimit(pContext.getSystemProperties().get("DiamondQProfileSelectorMaxAge"), 0));
+        boolean ageDue = (maxAge > 0) && (pNow - lastAgeTrim > TimeUnit.MINUTES.toNanos(1));
+        int trimmed = 0;
+        if (ageDue || ((maxResults > 0) && (cache.size() > maxResults))) {
+            if (ageDue) lastAgeTrim = pNow;
+            trimmed = cache.trim(maxResults, maxAge);
+            if (pSelectorDebug && (trimmed > 0)) logger.info("[DIAMONDQ Profile Activator]   " + trimmed
+                    + " cached results were evicted by the size and age limits");
         }
+        if ((trimmed > 0) || (dependencyStore.capacityUsed() >= compactAt)) compactDependencies(pSelectorDebug);
+        return trimmed;
+    }
 
-        /* Find the matching end bracket */
-
-        int endOffset = pScript.lastIndexOf(')');
-        if (endOffset == -1) {
-            pProblems.add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE).setMessage(
-                    "[DIAMONDQ Profile Activator] Unable to parse script when activating the profile " + pProfile.getId()).setLocation(pPropertyLocation));
-            return false;
+    /**
+     * Rebuilds the dependency store with only the dependencies that the cached results still refer to
+     */
+    private void compactDependencies(boolean pSelectorDebug) {
+        synchronized (compactionLock) {
+            int before = dependencyStore.capacityUsed();
+            int generation = dependencyStore.getGeneration();
+            BitSet referenced = cache.getDependencies(generation);
+            int kept = referenced.cardinality();
+
+            /* Not worth it unless at least half of the dependencies go */
+
+            if (kept * 2 > before) {
+                compactAt = Math.max(MIN_COMPACTION, before * 2);
+                return;
+            }
+            int[] newIds = dependencyStore.compact(generation, referenced);
+            if (newIds == null) return;
+            cache.renumber(generation, generation + 1, newIds);
+            compactAt = Math.max(MIN_COMPACTION, kept * 2);
+            int unwatched = releaseWatches();
+            if (pSelectorDebug) logger.info("[DIAMONDQ Profile Activator]   The dependency store was compacted from "
+                    + before + " to " + kept + " dependencies" + (unwatched > 0 ? " (" + unwatched
+                    + " directories are no longer watched)" : ""));
         }
+    }
 
-        /* Get the keyword and args */
-
-        String keyword = pScript.substring(0, offset).trim();
-        String args = pScript.substring(offset + 1, endOffset).trim();
-
-        if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   Keyword: |" + keyword + "| -> |" + args + "|");
+    /**
+     * Stops watching the directories that the dependencies left in the store don't need
+     *
+     * @return the number of directories that are no longer watched
+     */
+    private int releaseWatches() {
+        DependencyWatcher activeWatcher = getWatcher();
+        return activeWatcher == null ? 0 : activeWatcher.retain(dependencyStore);
+    }
 
-        /* Handle the keyword */
+    /**
+     * Releases everything that has been cached, because memory is running low
+     */
+    private void releaseMemory() {
+        synchronized (compactionLock) {
+            if (memoryPressure.get() != null) return;
+            int released = cache.size();
+            cache.clear();
+            dependencyStore.clear();
+            releaseWatches();
+            fileSystem.clear();
+            directoryTree.clear();
+            scriptParser.clear();
+            compactAt = MIN_COMPACTION;
+            memoryPressure = new SoftReference<>(new Object());
+            metrics.recordMemoryRelease(released);
+            logger.debug("[DIAMONDQ Profile Activator] Memory is low, so " + released
+                    + " cached results have been released");
+        }
+    }
 
-        if ("or".equalsIgnoreCase(keyword)) {
+    /**
+     * Returns a limit from a property
+     *
+     * @param pValue the value of the property (may be null)
+     * @param pDefault the default
+     * @return the limit (zero for none)
+     */
+    private static long getLimit(String pValue, long pDefault) {
+        if ((pValue == null) || pValue.isEmpty()) return pDefault;
+        try {
+            return Math.max(0L, Long.parseLong(pValue.trim()));
+        } catch (NumberFormatException ex) {
+            return pDefault;
+        }
+    }
 
-            /* Split the arg into a set of paths */
+    /**
+     * Returns true if the children of an and/or are evaluated cheapest first (see {@link Expression#order}), which is
+     * the default. Reordering can be turned off to evaluate them in the script order.
+     *
+     * @param pContext the context
+     * @return true if reordering
+     */
+    private static boolean isReordering(ProfileActivationContext pContext) {
+        return !"false".equalsIgnoreCase(pContext.getSystemProperties().get("DiamondQProfileSelectorReorder"));
+    }
 
-            List<String> split = splitArgs(pSelectorDebug, args);
-            for (String arg : split) {
-                if (recursiveProcess(pSelectorDebug, pProfile, pContext, pProblems, pPropertyLocation, arg)) {
-                    if (pSelectorDebug)
-                        logger.debug("[DIAMONDQ Profile Activator]   OR child returned true, so OR is true");
-                    return true;
-                }
+    /**
+     * Selects the active profiles, evaluating the ones that aren't cached in parallel. The first one is evaluated on the
+     * calling thread while the others run on the executor. The problems of each profile are buffered, and are reported
+     * in the order of the profiles once the profile's evaluation is done, so they are reported exactly as they would
+     * be one profile at a time. Sub-expression results are not shared between the parallel evaluations.
+     *
+     * @param pExecutor the executor
+     * @param pTrace the trace
+     * @param pGeneration the generation of the dependency store before anything was evaluated
+     * @param pWatcher the watcher (null if not in watch mode)
+     * @param pProfiles the profiles
+     * @param pDescriptors the descriptors of the profiles
+     * @param pContext the context
+     * @param pProblems the problem collector
+     * @param pActiveProfiles receives the active profiles (in order)
+     */
+    private void selectParallel(Executor pExecutor, ActivatorTrace pTrace, int pGeneration, DependencyWatcher pWatcher,
+                                Profile[] pProfiles, ProfileDescriptor[] pDescriptors,
+                                ProfileActivationContext pContext, ModelProblemCollector pProblems,
+                                List<Profile> pActiveProfiles) {
+        boolean[] results = new boolean[pProfiles.length];
+        @SuppressWarnings({"unchecked", "rawtypes"}) FutureTask<Boolean>[] tasks = new FutureTask[pProfiles.length];
+        BufferedProblems[] buffers = new BufferedProblems[pProfiles.length];
+        int inline = -1;
+        for (int i = 0; i < pProfiles.length; i++) {
+            Profile profile = pProfiles[i];
+            ProfileDescriptor descriptor = pDescriptors[i];
+            if (descriptor.script == null) continue;
+            ActivationCache.Entry cached = getCached(false, pTrace, profile, descriptor, pContext);
+            if (cached != null) {
+                results[i] = cached.active;
+                continue;
             }
-            if (pSelectorDebug)
-                logger.debug("[DIAMONDQ Profile Activator]   no OR child returned true, so OR is false");
-            return false;
-        } else if ("and".equalsIgnoreCase(keyword)) {
-
-            /* Split the arg into a set of paths */
-
-            List<String> split = splitArgs(pSelectorDebug, args);
-
-            for (String arg : split) {
-                if (!recursiveProcess(pSelectorDebug, pProfile, pContext, pProblems, pPropertyLocation, arg)) {
-                    if (pSelectorDebug)
-                        logger.debug("[DIAMONDQ Profile Activator]   AND child returned false, so AND is false");
-                    return false;
+            BufferedProblems buffer = buffers[i] = new BufferedProblems();
+            tasks[i] = new FutureTask<>(
+                    () -> evaluate(false, pTrace, pGeneration, null, pWatcher, profile, descriptor, pContext, buffer));
+            if (inline == -1) inline = i;
+            else {
+                try {
+                    pExecutor.execute(tasks[i]);
+                } catch (RejectedExecutionException ex) {
+                    tasks[i].run();
                 }
             }
-            if (pSelectorDebug)
-                logger.debug("[DIAMONDQ Profile Activator]   no AND child returned false, so AND is true");
-            return true;
-        } else if ("not".equalsIgnoreCase(keyword)) {
-            if (recursiveProcess(pSelectorDebug, pProfile, pContext, pProblems, pPropertyLocation, args)) {
-                if (pSelectorDebug)
-                    logger.debug("[DIAMONDQ Profile Activator]   NOT child returned true, so NOT is false");
-                return false;
-            }
-            if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   NOT child returned false, so NOT is true");
-            return true;
-        } else if ("profile".equalsIgnoreCase(keyword)) {
-            /* First, check for the entry in the profile directory */
-            if (recursiveProcess(pSelectorDebug,
-                    pProfile,
-                    pContext,
-                    pProblems,
-                    pPropertyLocation,
-                    "file(profiles/" + args + ")"
-            )) {
-                if (pSelectorDebug)
-                    logger.debug("[DIAMONDQ Profile Activator]   file(profiles/" + args + ") returned true, so true");
-                return true;
-            }
-            /* Then recursive up the tree checking in each parentProfile directory */
-            String projectDir = resolveDir("", pProfile, pContext, pProblems, pPropertyLocation);
-            if (projectDir == null) {
-                dependencies.add(Dependency.onFail());
-                return false;
-            }
-            Set<File> rootSet = Arrays.stream(File.listRoots()).collect(Collectors.toSet());
-            File f = new File(projectDir);
-            while (f != null && !rootSet.contains(f)) {
-                if (recursiveProcess(pSelectorDebug,
-                        pProfile,
-                        pContext,
-                        pProblems,
-                        pPropertyLocation,
-                        "file( " + new File(f.getAbsolutePath(), "/parentProfiles/" + args).getAbsolutePath() + ")"
-                )) {
-                    if (pSelectorDebug) logger.debug(
-                            "[DIAMONDQ Profile Activator]   file( " + f.getAbsolutePath() + "/parentProfiles/" + args
-                                    + ") returned true, so true");
-                    return true;
+        }
+        if (inline != -1) tasks[inline].run();
+
+        for (int i = 0; i < pProfiles.length; i++) {
+            if (tasks[i] != null) {
+                try {
+                    results[i] = tasks[i].get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while activating the profile " + pProfiles[i].getId(),
+                            ex);
+                } catch (ExecutionException ex) {
+                    buffers[i].replay(pProblems);
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException(cause);
                 }
-                f = f.getParentFile();
+                buffers[i].replay(pProblems);
             }
-            if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   no profiles found, so false");
-            return false;
-        } else if ("file".equalsIgnoreCase(keyword)) {
-
-            /* Resolve the file to see if it exists */
+            if (results[i]) pActiveProfiles.add(pProfiles[i]);
+        }
+    }
 
-            String filePath = resolveDir(args, pProfile, pContext, pProblems, pPropertyLocation);
-            if (filePath == null) {
-                dependencies.add(Dependency.onFail());
-                return false;
-            }
-            File file = new File(filePath);
-            dependencies.add(Dependency.onFile(file));
-            if (file.exists()) {
-                if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   file exists so true -> " + filePath);
-                return true;
-            } else {
-                if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   file missing so false -> " + filePath);
-                return false;
-            }
-        } else if ("missing".equalsIgnoreCase(keyword)) {
+    /**
+     * Holds the problems of a profile that is evaluated on another thread
+     */
+    private static final class BufferedProblems implements ModelProblemCollector {
+        private final List<ModelProblemCollectorRequest> requests = new ArrayList<>(0);
 
-            /* Resolve the file to see if it exists */
+        @Override
+        public void add(ModelProblemCollectorRequest pRequest) {
+            requests.add(pRequest);
+        }
 
-            String filePath = resolveDir(args, pProfile, pContext, pProblems, pPropertyLocation);
-            if (filePath == null) {
-                dependencies.add(Dependency.onFail());
-                return false;
-            }
-            File file = new File(filePath);
-            dependencies.add(Dependency.onFile(file));
-            if (file.exists()) {
-                if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   file exists so false -> " + filePath);
-                return false;
-            } else {
-                if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   file missing so true -> " + filePath);
-                return true;
-            }
-        } else if ("property".equalsIgnoreCase(keyword)) {
-
-            /* See if there is a = operator */
-
-            int eqOffset = args.indexOf('=');
-            String propValue;
-            String propKey;
-            if (eqOffset == -1) {
-                propKey = args;
-                propValue = null;
-            } else {
-                propKey = args.substring(0, eqOffset).trim();
-                propValue = args.substring(eqOffset + 1).trim();
-            }
+        void replay(ModelProblemCollector pProblems) {
+            for (ModelProblemCollectorRequest request : requests)
+                pProblems.add(request);
+        }
+    }
 
-            /* Check if the ! is present in the key */
+    /**
+     * Runs each task on its own (virtual) thread, but only a limited number at a time. The other threads wait for a
+     * permit, in the order the tasks were submitted, so submitting never blocks.
+     */
+    private static final class LimitedExecutor implements Executor {
+        private final Executor delegate;
+        private final Semaphore permits;
 
-            boolean reverse;
-            if (propKey.startsWith("!")) {
-                reverse = true;
-                propKey = propKey.substring(1);
-            } else reverse = false;
+        LimitedExecutor(Executor pDelegate, int pLimit) {
+            delegate = pDelegate;
+            permits = new Semaphore(pLimit, true);
+        }
 
-            /* Now look for the property */
+        @Override
+        public void execute(Runnable pTask) {
+            delegate.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    pTask.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
 
-            boolean userProperty = true;
-            String sysValue = pContext.getUserProperties().get(propKey);
-            if (sysValue == null) {
-                userProperty = false;
-            }
+    /**
+     * Returns the number of threads for parallel mode
+     *
+     * @param pValue the value of the property ('true' or a number of threads)
+     * @return the number of threads, or zero if parallel mode is off
+     */
+    static int getParallelism(String pValue) {
+        if ((pValue == null) || pValue.isEmpty() || "false".equalsIgnoreCase(pValue)) return 0;
+        if ("true".equalsIgnoreCase(pValue)) return DEFAULT_PARALLELISM;
+        try {
+            return Math.max(0, Integer.parseInt(pValue.trim()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
 
-            Dependency dep = Dependency.onProperty(userProperty, propKey, propValue, reverse);
-            return dep.isValid(pContext, pSelectorDebug ? logger : null);
-        } else if ("type".equalsIgnoreCase(keyword)) {
+    /**
+     * Returns the executor for parallel mode. On Java 21+ this is a virtual thread per task (which suits evaluations
+     * that mostly wait on the file system), limited to the number of threads running at a time, and otherwise a pool of
+     * daemon threads that time out when idle.
+     *
+     * @param pThreads the number of threads of the pool (zero for the current number, or the default)
+     * @return the executor
+     */
+    private synchronized Executor getExecutor(int pThreads) {
+        if (pThreads <= 0) pThreads = executor != null ? executorThreads : DEFAULT_PARALLELISM;
+        if ((executor != null) && (executorThreads == pThreads)) return executor;
+        if (executor instanceof ThreadPoolExecutor) ((ThreadPoolExecutor) executor).shutdown();
+        executorThreads = pThreads;
 
-            /* Check to see if there is a file with the prefix "type-{args}" present */
+        /* This is built for Java 8, so the virtual threads can only be found by reflection */
 
-            String filePath = resolveDir("profiles", pProfile, pContext, pProblems, pPropertyLocation);
-            if (filePath == null) {
-                dependencies.add(Dependency.onFail());
-                return false;
+        if ((virtualThreads == null) && !virtualThreadsUnavailable) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualThreads = (Executor) method.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                virtualThreadsUnavailable = true;
             }
-            File profilesDir = new File(filePath);
-            String prefix = "type-" + args;
-            if (profilesDir.exists()) {
-                File[] testFiles = profilesDir.listFiles();
-                if (testFiles != null) {
-                    for (File testFile : testFiles) {
-                        if (testFile.getName().startsWith(prefix)) {
-                            if (pSelectorDebug)
-                                logger.debug("[DIAMONDQ Profile Activator]   type \"" + testFile + "\" exists so true");
-                            dependencies.add(Dependency.onFile(testFile));
-                            return true;
-                        }
-                    }
-                }
-                if (pSelectorDebug)
-                    logger.debug("[DIAMONDQ Profile Activator]   no type \"" + prefix + "\" exists so false");
-                dependencies.add(Dependency.onNoStartsWith(profilesDir, prefix));
-            } else {
-                if (pSelectorDebug)
-                    logger.debug("[DIAMONDQ Profile Activator]   profiles dir \"" + filePath + "\" doesn't exists so false");
-                dependencies.add(Dependency.onFile(profilesDir));
+        }
+        if (virtualThreads != null) {
+            executor = new LimitedExecutor(virtualThreads, pThreads);
+            return executor;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(pThreads, pThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "diamondq-profile-activator-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        return executor;
+    }
+
+    /**
+     * Resolves a path from a script against the context. Plain paths only need to be aligned to the project directory,
+     * and templated paths are a lookup per placeholder. The properties that the placeholders resolved against are
+     * recorded as dependencies of the result.
+     *
+     * @param pTemplate the path template
+     * @param pEval the evaluation
+     * @return the resolved path or null if it can't be resolved
+     */
+    String resolveDir(PathTemplate pTemplate, Evaluation pEval) {
+        ProfileActivationContext context = pEval.context;
+        File basedir = context.getProjectDirectory();
+        if ((basedir == null) && pTemplate.usesBasedir) return null;
+
+        String path;
+        if (pTemplate.isLiteral()) path = pTemplate.text;
+        else {
+            path = pTemplate.complex ? null : interpolate(pTemplate, pEval, basedir);
+            if (path == null) {
+
+                /*
+                 * The full interpolator may look up any number of nested properties, so the result must not outlive the
+                 * context
+                 */
+
+                pEval.dependOnFail();
+                path = interpolate(pTemplate.text, pEval.profile, context, pEval, pEval.location);
+                if (path == null) return null;
             }
-            return false;
-        } else if ("jdk".equalsIgnoreCase(keyword)) {
+        }
 
-            /* Check to see what type-java-XX is present */
+        /* NOTE: The basedir is part of the cache key, so relative paths don't need a dependency on it */
 
-            int javaVer = -1;
-            String filePath = resolveDir("profiles", pProfile, pContext, pProblems, pPropertyLocation);
-            if (filePath == null) {
-                dependencies.add(Dependency.onFail());
-                return false;
-            }
-            File profilesDir = new File(filePath);
-            if (profilesDir.exists()) {
-                File matchFile = null;
-                File[] testFiles = profilesDir.listFiles();
-                if (testFiles != null) for (File testFile : testFiles) {
-                    if (testFile.getName().startsWith("type-java-")) {
-                        matchFile = testFile;
-                        javaVer = Integer.parseInt(testFile.getName().substring(10));
-                    }
-                }
-                if (javaVer == -1) {
-                    if (pSelectorDebug) logger.debug(
-                            "[DIAMONDQ Profile Activator]   No profiles/type-java-XXX present when requesting a jdk so false");
-                    dependencies.add(Dependency.onNoStartsWith(profilesDir, "type-java-"));
-                    return false;
-                }
-                dependencies.add(Dependency.onFile(matchFile));
-                if (args.startsWith("<=") || args.startsWith("=<")) {
-                    int testVer = Integer.parseInt(args.substring(2).trim());
-                    if (javaVer <= testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " <= " + testVer + " so true");
-                        return true;
-                    }
-                } else if (args.startsWith("<")) {
-                    int testVer = Integer.parseInt(args.substring(1).trim());
-                    if (javaVer < testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " < " + testVer + " so true");
-                        dependencies.add(Dependency.onFile(matchFile));
-                        return true;
-                    }
-                } else if (args.startsWith(">=") || args.startsWith("=>")) {
-                    int testVer = Integer.parseInt(args.substring(2).trim());
-                    if (javaVer >= testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " >= " + testVer + " so true");
-                        dependencies.add(Dependency.onFile(matchFile));
-                        return true;
-                    }
-                } else if (args.startsWith(">")) {
-                    int testVer = Integer.parseInt(args.substring(1).trim());
-                    if (javaVer > testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " > " + testVer + " so true");
-                        dependencies.add(Dependency.onFile(matchFile));
-                        return true;
-                    }
-                } else if (args.startsWith("=")) {
-                    int testVer = Integer.parseInt(args.substring(1).trim());
-                    if (javaVer == testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " == " + testVer + " so true");
-                        dependencies.add(Dependency.onFile(matchFile));
-                        return true;
-                    }
-                } else {
-                    int testVer = Integer.parseInt(args.trim());
-                    if (javaVer == testVer) {
-                        if (pSelectorDebug)
-                            logger.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " == " + testVer + " so true");
-                        dependencies.add(Dependency.onFile(matchFile));
-                        return true;
-                    }
+        String aligned = pTemplate.getAligned(basedir, path);
+        if (aligned == null) {
+            aligned = pathTranslator.alignToBaseDirectory(path, basedir);
+            pTemplate.setAligned(basedir, path, aligned);
+        }
+        return aligned;
+    }
+
+    /**
+     * Fills in the placeholders of a template. The lookup order matches the interpolator: ${basedir}, then the project
+     * properties, the user properties and finally the system properties.
+     *
+     * @param pTemplate the template
+     * @param pEval the evaluation
+     * @param pBasedir the project directory (may be null)
+     * @return the path or null if a value contains another placeholder (and needs the full interpolator)
+     */
+    private String interpolate(PathTemplate pTemplate, Evaluation pEval, File pBasedir) {
+        ProfileActivationContext context = pEval.context;
+        Map<String, String> projectProperties = context.getProjectProperties();
+        String[] names = pTemplate.names;
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            String value;
+            if ((pBasedir != null) && "basedir".equals(name)) value = pBasedir.getAbsolutePath();
+            else {
+                value = projectProperties == null ? null : projectProperties.get(name);
+                pEval.dependOnProjectProperty(name);
+                if (value == null) {
+                    String userValue = context.getUserProperties().get(name);
+                    String systemValue = context.getSystemProperties().get(name);
+                    pEval.dependOnProperty(name);
+                    value = userValue != null ? userValue : systemValue;
                 }
-                if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   jdk is false");
-            } else {
-                if (pSelectorDebug)
-                    logger.debug("[DIAMONDQ Profile Activator]   profiles dir \"" + filePath + "\" doesn't exists so false");
-                dependencies.add(Dependency.onFile(profilesDir));
             }
-            return false;
-        } else {
-            pProblems.add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE).setMessage(
-                            "[DIAMONDQ Profile Activator] Unrecognized script keyword \"" + keyword + "\" when activating the profile " + pProfile.getId())
-                    .setLocation(pPropertyLocation));
-            return false;
+            if (value == null) value = "${" + name + "}";
+            else if (value.contains("${")) return null;
+            values[i] = value;
         }
+        return pTemplate.format(values);
     }
 
-    private String resolveDir(String pPath, Profile pProfile, ProfileActivationContext pContext,
-                              ModelProblemCollector pProblems, InputLocation pPropertyLocation) {
+    private String interpolate(String pPath, Profile pProfile, ProfileActivationContext pContext,
+                               ModelProblemCollector pProblems, InputLocation pPropertyLocation) {
         RegexBasedInterpolator interpolator = new RegexBasedInterpolator();
 
         final File basedir = pContext.getProjectDirectory();
-        boolean containsBaseDir = pPath.contains("${basedir}");
 
         if (basedir != null) {
             interpolator.addValueSource(new AbstractValueSource(false) {
@@ -555,10 +1138,6 @@ public class CommonProfileSelector {
                     return null;
                 }
             });
-        } else {
-            if (containsBaseDir) {
-                return null;
-            }
         }
 
         interpolator.addValueSource(new MapBasedValueSource(pContext.getProjectProperties()));
@@ -568,60 +1147,35 @@ public class CommonProfileSelector {
         interpolator.addValueSource(new MapBasedValueSource(pContext.getSystemProperties()));
 
         try {
-            pPath = interpolator.interpolate(pPath, "");
+            return interpolator.interpolate(pPath, "");
         } catch (Exception e) {
             pProblems.add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE).setMessage(
                     "[DIAMONDQ Profile Activator] Failed to interpolate file " + "location " + pPath + " for " + "profile " + pProfile.getId() + ": "
                             + e.getMessage()).setLocation(pPropertyLocation).setException(e));
             return null;
         }
-
-        if ((!Paths.get(pPath).isAbsolute()) || (containsBaseDir)) dependencies.add(Dependency.onProjectDir(basedir));
-        pPath = pathTranslator.alignToBaseDirectory(pPath, basedir);
-
-        return pPath;
     }
 
 
-    private List<String> splitArgs(boolean pSelectorDebug, String pArgs) {
-        List<String> result = new ArrayList<>();
-        char[] charArray = pArgs.toCharArray();
-        int size = charArray.length;
-        int depth = 0;
-        int start = 0;
-        for (int i = 0; i < size; i++) {
-            char ch = charArray[i];
-            if (ch == '(') depth++;
-            else if (ch == ')') depth--;
-            else if ((ch == ',') && (depth == 0)) {
-                result.add(new String(charArray, start, i - start).trim());
-                start = i + 1;
-            }
-        }
-        if (depth == 0) result.add(new String(charArray, start, size - start).trim());
-        if (pSelectorDebug) logger.debug("[DIAMONDQ Profile Activator]   splitArgs(" + pArgs + ") -> " + result);
-        return result;
-    }
-
-
-    private List<Profile> getActiveProfiles(
-            Collection<Profile> profiles, ProfileActivationContext context, ModelProblemCollector problems) {
+    private List<Profile> getActiveProfiles(Profile[] profiles, ProfileDescriptor[] descriptors,
+                                            ProfileActivationContext context, ModelProblemCollector problems) {
         Collection<String> activatedIds = new HashSet<>(context.getActiveProfileIds());
         Collection<String> deactivatedIds = new HashSet<>(context.getInactiveProfileIds());
 
-        List<Profile> activeProfiles = new ArrayList<>(profiles.size());
+        List<Profile> activeProfiles = new ArrayList<>(profiles.length);
         List<Profile> activePomProfilesByDefault = new ArrayList<>();
         boolean activatedPomProfileNotByDefault = false;
 
-        for (Profile profile : profiles) {
+        for (int i = 0; i < profiles.length; i++) {
+            Profile profile = profiles[i];
             if (!deactivatedIds.contains(profile.getId())) {
-                if (activatedIds.contains(profile.getId()) || isActive(profile, context, problems)) {
+                if (activatedIds.contains(profile.getId()) || isActive(profile, descriptors[i], context, problems)) {
                     activeProfiles.add(profile);
 
                     if (Profile.SOURCE_POM.equals(profile.getSource())) {
                         activatedPomProfileNotByDefault = true;
                     }
-                } else if (isActiveByDefault(profile)) {
+                } else if (descriptors[i].activeByDefault) {
                     if (Profile.SOURCE_POM.equals(profile.getSource())) {
                         activePomProfilesByDefault.add(profile);
                     } else {
@@ -638,18 +1192,13 @@ public class CommonProfileSelector {
         return activeProfiles;
     }
 
-    private boolean isActive(Profile profile, ProfileActivationContext context, ModelProblemCollector problems) {
-        boolean isActive = false;
-        for (ProfileActivator activator : activatorList) {
-            if (activator.presentInConfig(profile, context, problems)) {
-                isActive = true;
-            }
-        }
-        for (ProfileActivator activator : activatorList) {
+    private boolean isActive(Profile profile, ProfileDescriptor descriptor, ProfileActivationContext context,
+                             ModelProblemCollector problems) {
+        if (descriptor.activators.length == 0) return false;
+        boolean isActive = true;
+        for (ProfileActivator activator : descriptor.activators) {
             try {
-                if (activator.presentInConfig(profile, context, problems)) {
-                    isActive &= activator.isActive(profile, context, problems);
-                }
+                isActive &= activator.isActive(profile, context, problems);
             } catch (RuntimeException e) {
                 problems.add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE)
                         .setMessage(
@@ -661,9 +1210,4 @@ public class CommonProfileSelector {
         }
         return isActive;
     }
-
-    private boolean isActiveByDefault(Profile profile) {
-        Activation activation = profile.getActivation();
-        return activation != null && activation.isActiveByDefault();
-    }
 }
@@ -1,121 +0,0 @@
-package com.diamondq.maven.activator;
-
-import org.apache.maven.model.profile.ProfileActivationContext;
-
-import java.io.File;
-import java.util.Objects;
-
-public abstract class Dependency {
-
-    public static Dependency onFile(File pFile) {
-        boolean originalExists = pFile.exists();
-        return new Dependency() {
-
-            @Override
-            public boolean isValid(ProfileActivationContext pContext, ActivatorLogger logger) {
-                return pFile.exists() == originalExists;
-            }
-        };
-    }
-
-    public static Dependency onNoStartsWith(File pProfilesDir, String pPrefix) {
-        return new Dependency() {
-
-            @Override
-            public boolean isValid(ProfileActivationContext pContext, ActivatorLogger logger) {
-                File[] files = pProfilesDir.listFiles();
-                if (files != null)
-                    for (File file : files) {
-                        if (file.getName().startsWith(pPrefix))
-                            return false;
-                    }
-                return true;
-            }
-        };
-    }
-
-    public static Dependency onFail() {
-        return new Dependency() {
-
-            @Override
-            public boolean isValid(ProfileActivationContext pContext, ActivatorLogger logger) {
-                return false;
-            }
-        };
-    }
-
-    public static Dependency onProperty(boolean pUserProperty, String pPropKey, String pPropValue, boolean pReverse) {
-        return new Dependency() {
-
-            @Override
-            public boolean isValid(ProfileActivationContext pContext, ActivatorLogger pLogger) {
-                String sysValue;
-                if (pUserProperty)
-                    sysValue = pContext.getUserProperties().get(pPropKey);
-                else
-                    sysValue = pContext.getSystemProperties().get(pPropKey);
-                if (sysValue != null && !sysValue.isEmpty()) {
-                    if (pPropValue == null) {
-                        if (pReverse) {
-                            if (pLogger != null)
-                                pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" exists so false");
-                            return false;
-                        }
-                        if (pLogger != null)
-                            pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" exists so true");
-                        return true;
-                    } else {
-                        if (pPropValue.equals(sysValue)) {
-                            if (pReverse) {
-                                if (pLogger != null)
-                                    pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" -> \"" + sysValue
-                                            + "\" equals to \"" + pPropValue + "\" so false");
-                                return false;
-                            }
-                            if (pLogger != null)
-                                pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" -> \"" + sysValue
-                                        + "\" equals to \"" + pPropValue + "\" so true");
-                            return true;
-                        } else {
-                            if (pReverse) {
-                                if (pLogger != null)
-                                    pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" -> \"" + sysValue
-                                            + "\" not equals to \"" + pPropValue + "\" so true");
-                                return true;
-                            }
-                            if (pLogger != null)
-                                pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" -> \"" + sysValue
-                                        + "\" not equals to \"" + pPropValue + "\" so false");
-                            return false;
-                        }
-                    }
-                } else {
-                    if (pReverse) {
-                        if (pLogger != null)
-                            pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" does not exist so true");
-                        return true;
-                    }
-                    if (pLogger != null)
-                        pLogger.debug("[DIAMONDQ Profile Activator]   property \"" + pPropKey + "\" does not exist so false");
-                    return false;
-                }
-            }
-        };
-    }
-
-    public static Dependency onProjectDir(File pBasedir) {
-        String matchingDir = pBasedir == null ? null : pBasedir.toString();
-        return new Dependency() {
-
-            @Override
-            public boolean isValid(ProfileActivationContext pContext, ActivatorLogger pLogger) {
-                File baseDir = pContext.getProjectDirectory();
-                String testDir = baseDir == null ? null : baseDir.toString();
-                return Objects.equals(matchingDir, testDir);
-            }
-        };
-    }
-
-    public abstract boolean isValid(ProfileActivationContext pContext, ActivatorLogger logger);
-
-}
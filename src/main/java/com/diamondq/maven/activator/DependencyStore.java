@@ -0,0 +1,626 @@
+package com.diamondq.maven.activator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores every unique dependency check exactly once. Paths and prefixes are interned into name ids, and each check is
+ * stored as a kind plus two values (the expected outcome is part of the check, so a file that exists and the same file
+ * that is missing are two different checks). Cached results refer to their checks by id. Properties are not checked
+ * here, since each result carries its own {@link PropertyFingerprint}.
+ * <p>
+ * When a check fails it is marked as dead (all the results that referred to it are evicted at the same time), and it
+ * is revived if it is ever recorded again.
+ * <p>
+ * Recording a check only holds the store's monitor for the in-memory bookkeeping. Validation does its file system access
+ * without holding it, so evaluations on other threads are never blocked behind disk I/O.
+ * <p>
+ * In watch mode (see {@link DependencyWatcher}) the file checks also carry a watch state. A check whose directory is
+ * watched doesn't need to be validated by the sweep, since any change to it arrives as an event (and is revalidated by
+ * {@link #revalidate(BitSet, FileSystemSnapshot)}).
+ */
+public class DependencyStore {
+
+    /**
+     * Always fails (used when a path could not be resolved)
+     */
+    static final int FAIL = 1;
+
+    /**
+     * The file at name id 'first' exists if 'second' is 1 or is missing if 'second' is 0
+     */
+    static final int FILE = 2;
+
+    /**
+     * No file in the directory at name id 'first' starts with the prefix at name id 'second'
+     */
+    static final int NO_PREFIX = 3;
+
+    /**
+     * The highest type-java-XX marker in the directory at name id 'first' is 'second' - 1 (so 0 means no marker)
+     */
+    static final int JAVA_VERSION = 4;
+
+    /**
+     * Name ids and check ids are packed into a single long key, so they are limited to 20 bits each
+     */
+    private static final int MAX_ID = (1 << 20) - 1;
+
+    /**
+     * The check isn't covered by a watch, so the sweep has to validate it
+     */
+    static final byte UNWATCHED = 0;
+
+    /**
+     * A watch has been registered for the check, but the check has to be validated once more, since a change may have
+     * happened between the evaluation and the registration
+     */
+    static final byte REGISTERED = 1;
+
+    /**
+     * The check is covered by a watch, so only an event can invalidate it
+     */
+    static final byte WATCHED = 2;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private String[] names = new String[64];
+    private int nameCount;
+
+    private int[] kinds = new int[64];
+    private int[] firsts = new int[64];
+    private int[] seconds = new int[64];
+    private boolean[] live = new boolean[64];
+    private byte[] watchStates = new byte[64];
+    private int count;
+
+    /**
+     * Chains of the checks by their 'first' name id, so that the checks on a changed path can be found. The heads are
+     * indexed by name id and the links by check id, and both hold the check id + 1 (so 0 ends the chain)
+     */
+    private int[] firstHeads = new int[64];
+    private int[] firstLinks = new int[64];
+
+    /**
+     * Open addressing index from the packed check to the check id. A key of 0 is never used since the kinds start at 1
+     */
+    private long[] indexKeys = new long[128];
+    private int[] indexValues = new int[128];
+
+    /**
+     * Incremented every time the store is cleared, since the ids from before a clear are meaningless afterwards
+     */
+    private int generation;
+
+    public DependencyStore() {
+
+        /* Name id 0 is reserved for null */
+
+        nameCount = 1;
+    }
+
+    private int intern(String pName) {
+        if (pName == null) return 0;
+        Integer id = nameIds.get(pName);
+        if (id != null) return id;
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+            firstHeads = Arrays.copyOf(firstHeads, nameCount * 2);
+        }
+        int newId = nameCount++;
+        names[newId] = pName;
+        nameIds.put(pName, newId);
+        return newId;
+    }
+
+    /**
+     * Returns true if the store has run out of ids and needs to be cleared
+     */
+    public synchronized boolean isFull() {
+        return (nameCount >= MAX_ID - 3) || (count >= MAX_ID);
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized int failDependency() {
+        return record(FAIL, 0, 0);
+    }
+
+    public int fileDependency(File pFile, boolean pExists) {
+        return fileDependency(pFile.getPath(), pExists);
+    }
+
+    public synchronized int fileDependency(String pPath, boolean pExists) {
+        return record(FILE, intern(pPath), pExists ? 1 : 0);
+    }
+
+    public synchronized int noPrefixDependency(File pDir, String pPrefix) {
+        return record(NO_PREFIX, intern(pDir.getPath()), intern(pPrefix));
+    }
+
+    public synchronized int javaVersionDependency(File pDir, int pJavaVersion) {
+        return record(JAVA_VERSION, intern(pDir.getPath()), Math.min(pJavaVersion + 1, MAX_ID));
+    }
+
+    /**
+     * Checks whether a result computed from the given dependencies can still be cached. This is called after the
+     * result was stored, so that a concurrent validation either sees the result (and evicts it) or has already marked
+     * the dependency as dead (and this returns false).
+     *
+     * @param pGeneration the generation when the evaluation started
+     * @param pIds the dependency ids
+     * @return true if all the dependencies are still live
+     */
+    public synchronized boolean isCurrent(int pGeneration, int[] pIds) {
+        if (pGeneration != generation) return false;
+        for (int id : pIds)
+            if (!live[id]) return false;
+        return true;
+    }
+
+    private int record(int pKind, int pFirst, int pSecond) {
+        long key = ((long) pKind << 60) | ((long) pFirst << 40) | ((long) pSecond << 20);
+        int mask = indexKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (indexKeys[slot] != 0) {
+            if (indexKeys[slot] == key) {
+                int id = indexValues[slot];
+                live[id] = true;
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        /* Add a new check */
+
+        if (count == kinds.length) {
+            int newSize = count * 2;
+            kinds = Arrays.copyOf(kinds, newSize);
+            firsts = Arrays.copyOf(firsts, newSize);
+            seconds = Arrays.copyOf(seconds, newSize);
+            live = Arrays.copyOf(live, newSize);
+            watchStates = Arrays.copyOf(watchStates, newSize);
+            firstLinks = Arrays.copyOf(firstLinks, newSize);
+        }
+        int id = count++;
+        kinds[id] = pKind;
+        firsts[id] = pFirst;
+        seconds[id] = pSecond;
+        live[id] = true;
+        firstLinks[id] = firstHeads[pFirst];
+        firstHeads[pFirst] = id + 1;
+        indexKeys[slot] = key;
+        indexValues[slot] = id;
+        if (count * 2 > indexKeys.length) rehash();
+        return id;
+    }
+
+    private static int mix(long pKey) {
+        long h = pKey * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash() {
+        long[] oldKeys = indexKeys;
+        int[] oldValues = indexValues;
+        indexKeys = new long[oldKeys.length * 2];
+        indexValues = new int[oldKeys.length * 2];
+        int mask = indexKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = mix(oldKeys[i]) & mask;
+            while (indexKeys[slot] != 0)
+                slot = (slot + 1) & mask;
+            indexKeys[slot] = oldKeys[i];
+            indexValues[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Checks every live dependency once. The dependencies that fail are marked as dead.
+     *
+     * @param pFileSystem the file system snapshot
+     * @return the ids of the dependencies that failed
+     */
+    public BitSet validate(FileSystemSnapshot pFileSystem) {
+        return validate(null, pFileSystem, null);
+    }
+
+    /**
+     * Checks the live dependencies that aren't covered by a watch. A newly watched dependency that is still valid becomes
+     * watched, and the valid dependencies that aren't watched yet are returned so that watches can be registered.
+     *
+     * @param pFileSystem the file system snapshot
+     * @param pUnwatched receives the ids of the valid dependencies that aren't watched
+     * @return the ids of the dependencies that failed
+     */
+    public BitSet validateUnwatched(FileSystemSnapshot pFileSystem, BitSet pUnwatched) {
+        return validate(null, pFileSystem, pUnwatched);
+    }
+
+    /**
+     * Checks the given dependencies (usually because a watch reported a change to their paths). The dependencies that
+     * are still valid are no longer considered watched, since the change may have been to the watched directory itself.
+     *
+     * @param pIds the ids of the dependencies
+     * @param pFileSystem the file system snapshot
+     * @return the ids of the dependencies that failed
+     */
+    public BitSet revalidate(BitSet pIds, FileSystemSnapshot pFileSystem) {
+        return validate(pIds, pFileSystem, null);
+    }
+
+    private BitSet validate(BitSet pOnly, FileSystemSnapshot pFileSystem, BitSet pUnwatched) {
+
+        /*
+         * Take a snapshot of the arrays. Growing always replaces the arrays, and the entries below the count are never
+         * changed (other than the live flag), so they can be read without holding the monitor
+         */
+
+        int snapshotCount;
+        int snapshotGeneration;
+        int[] snapshotKinds;
+        int[] snapshotFirsts;
+        int[] snapshotSeconds;
+        boolean[] snapshotLive;
+        byte[] snapshotWatchStates;
+        String[] snapshotNames;
+        synchronized (this) {
+            snapshotCount = count;
+            snapshotGeneration = generation;
+            snapshotKinds = kinds;
+            snapshotFirsts = firsts;
+            snapshotSeconds = seconds;
+            snapshotLive = Arrays.copyOf(live, count);
+            snapshotWatchStates = pUnwatched == null ? null : Arrays.copyOf(watchStates, count);
+            snapshotNames = names;
+        }
+
+        BitSet failed = new BitSet();
+        BitSet registered = null;
+        int id = pOnly == null ? 0 : pOnly.nextSetBit(0);
+        while ((id >= 0) && (id < snapshotCount)) {
+            if (snapshotLive[id] && ((snapshotWatchStates == null) || (snapshotWatchStates[id] != WATCHED))) {
+                if (!isValid(snapshotKinds[id], snapshotNames, snapshotFirsts[id], snapshotSeconds[id], pFileSystem))
+                    failed.set(id);
+                else if (snapshotWatchStates != null) {
+                    if (snapshotWatchStates[id] == REGISTERED) {
+                        if (registered == null) registered = new BitSet();
+                        registered.set(id);
+                    } else if (isFileKind(snapshotKinds[id])) pUnwatched.set(id);
+                }
+            }
+            id = pOnly == null ? id + 1 : pOnly.nextSetBit(id + 1);
+        }
+
+        /* Mark the failures as dead, and update the watch states */
+
+        if (!failed.isEmpty() || (registered != null) || (pOnly != null)) {
+            synchronized (this) {
+                if (snapshotGeneration == generation) {
+                    for (id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1)) {
+                        live[id] = false;
+                        watchStates[id] = UNWATCHED;
+                    }
+                    if (registered != null)
+                        for (id = registered.nextSetBit(0); id >= 0; id = registered.nextSetBit(id + 1))
+                            if (watchStates[id] == REGISTERED) watchStates[id] = WATCHED;
+                    if (pOnly != null)
+                        for (id = pOnly.nextSetBit(0); (id >= 0) && (id < snapshotCount); id = pOnly.nextSetBit(id + 1))
+                            watchStates[id] = UNWATCHED;
+                }
+            }
+        }
+        return failed;
+    }
+
+    private static boolean isFileKind(int pKind) {
+        return (pKind == FILE) || (pKind == NO_PREFIX) || (pKind == JAVA_VERSION);
+    }
+
+    /**
+     * Adds the ids of the live dependencies that check the path itself
+     *
+     * @param pPath the path
+     * @param pIds receives the ids
+     */
+    public synchronized void dependenciesOn(String pPath, BitSet pIds) {
+        Integer nameId = nameIds.get(pPath);
+        if (nameId == null) return;
+        for (int link = firstHeads[nameId]; link != 0; link = firstLinks[link - 1])
+            if (live[link - 1]) pIds.set(link - 1);
+    }
+
+    /**
+     * Adds the id of the check that always fails, if it is live. Only the fail check has name id 0 as its 'first', so
+     * it is the only one in that chain.
+     *
+     * @param pIds receives the id
+     */
+    public synchronized void failDependencies(BitSet pIds) {
+        for (int link = firstHeads[0]; link != 0; link = firstLinks[link - 1])
+            if (live[link - 1] && (kinds[link - 1] == FAIL)) pIds.set(link - 1);
+    }
+
+    /**
+     * Returns the directories that could cover the dependency with a watch, in order of preference. A file check needs
+     * its parent directory, and a directory check needs the directory itself or (if it doesn't exist) its parent, which
+     * reports the directory being created.
+     *
+     * @param pGeneration the generation that the id belongs to
+     * @param pId the dependency id
+     * @return the directories, or null if the dependency can't be watched or is already watched (or is from another
+     * generation)
+     */
+    public synchronized File[] watchCandidates(int pGeneration, int pId) {
+        if ((pGeneration != generation) || (pId >= count) || !live[pId] || (watchStates[pId] != UNWATCHED)) return null;
+        return candidates(pId);
+    }
+
+    /**
+     * Returns the paths of the directories that could cover any of the live dependencies with a watch (see
+     * {@link #watchCandidates(int, int)})
+     *
+     * @return the paths
+     */
+    public synchronized Set<String> watchDirectories() {
+        Set<String> paths = new HashSet<>();
+        for (int id = 0; id < count; id++) {
+            if (!live[id]) continue;
+            File[] candidates = candidates(id);
+            if (candidates != null) for (File candidate : candidates)
+                paths.add(candidate.getPath());
+        }
+        return paths;
+    }
+
+    private File[] candidates(int pId) {
+        File file = new File(names[firsts[pId]]);
+        switch (kinds[pId]) {
+            case FILE: {
+                File parent = file.getParentFile();
+                return parent == null ? null : new File[]{parent};
+            }
+            case NO_PREFIX:
+            case JAVA_VERSION: {
+                File parent = file.getParentFile();
+                return parent == null ? new File[]{file} : new File[]{file, parent};
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Records that a watch covering the dependency has been registered
+     *
+     * @param pGeneration the generation that the id belongs to
+     * @param pId the dependency id
+     */
+    public synchronized void watchRegistered(int pGeneration, int pId) {
+        if ((pGeneration == generation) && (pId < count) && live[pId] && (watchStates[pId] == UNWATCHED)) watchStates[pId] = REGISTERED;
+    }
+
+    /**
+     * Forgets every watch (for example, because the watcher lost events), so every dependency is validated again
+     */
+    public synchronized void resetWatches() {
+        Arrays.fill(watchStates, UNWATCHED);
+    }
+
+    /**
+     * Returns the number of live dependencies that are covered by a watch
+     */
+    public synchronized int watchedSize() {
+        int size = 0;
+        for (int id = 0; id < count; id++)
+            if (live[id] && (watchStates[id] == WATCHED)) size++;
+        return size;
+    }
+
+    private static boolean isValid(int pKind, String[] pNames, int pFirst, int pSecond,
+                                   FileSystemSnapshot pFileSystem) {
+        switch (pKind) {
+            case FILE:
+                return pFileSystem.exists(new File(pNames[pFirst])) == (pSecond == 1);
+            case NO_PREFIX:
+                return pFileSystem.index(new File(pNames[pFirst])).findPrefix(pNames[pSecond]) == null;
+            case JAVA_VERSION:
+                return Math.min(pFileSystem.index(new File(pNames[pFirst])).getJavaVersion() + 1, MAX_ID) == pSecond;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes the given live dependencies (along with the names they use). The written dependencies are numbered from 0
+     * in the order of their ids.
+     *
+     * @param pOut the output
+     * @param pIds the ids of the dependencies to write
+     * @return the written number of each dependency, indexed by id (-1 if it wasn't written because it's dead)
+     * @throws IOException if the output fails
+     */
+    public synchronized int[] write(DataOutput pOut, BitSet pIds) throws IOException {
+        int[] written = new int[count];
+        Arrays.fill(written, -1);
+        int[] nameNumbers = new int[nameCount];
+        List<String> usedNames = new ArrayList<>();
+        int checkCount = 0;
+        for (int id = pIds.nextSetBit(0); (id >= 0) && (id < count); id = pIds.nextSetBit(id + 1)) {
+            if (!live[id]) continue;
+            written[id] = checkCount++;
+            int[] nameIds = {firsts[id], hasNameSecond(kinds[id]) ? seconds[id] : 0};
+            for (int nameId : nameIds) {
+                if ((nameId != 0) && (nameNumbers[nameId] == 0)) {
+                    usedNames.add(names[nameId]);
+                    nameNumbers[nameId] = usedNames.size();
+                }
+            }
+        }
+
+        pOut.writeInt(usedNames.size());
+        for (String name : usedNames)
+            writeString(pOut, name);
+        pOut.writeInt(checkCount);
+        for (int id = 0; id < count; id++) {
+            if (written[id] < 0) continue;
+            pOut.writeByte(kinds[id]);
+            pOut.writeInt(nameNumbers[firsts[id]]);
+            pOut.writeInt(hasNameSecond(kinds[id]) ? nameNumbers[seconds[id]] : seconds[id]);
+        }
+        return written;
+    }
+
+    /**
+     * Reads dependencies written by {@link #write(DataOutput, BitSet)} and records them
+     *
+     * @param pIn the input
+     * @return the id of each dependency, indexed by its written number
+     * @throws IOException if the input fails or is corrupt
+     */
+    public synchronized int[] read(DataInput pIn) throws IOException {
+        int usedNameCount = pIn.readInt();
+        if ((usedNameCount < 0) || (usedNameCount >= MAX_ID - nameCount))
+            throw new IOException("Invalid name count " + usedNameCount);
+        int[] nameNumbers = new int[usedNameCount + 1];
+        for (int i = 1; i <= usedNameCount; i++)
+            nameNumbers[i] = intern(readString(pIn));
+        int checkCount = pIn.readInt();
+        if ((checkCount < 0) || (checkCount >= MAX_ID - count))
+            throw new IOException("Invalid dependency count " + checkCount);
+        int[] ids = new int[checkCount];
+        for (int i = 0; i < checkCount; i++) {
+            int kind = pIn.readByte();
+            int first = pIn.readInt();
+            int second = pIn.readInt();
+            if ((kind < FAIL) || (kind > JAVA_VERSION) || !isNameNumber(first, usedNameCount) || (second < 0)
+                    || (second > MAX_ID) || (hasNameSecond(kind) && !isNameNumber(second, usedNameCount)))
+                throw new IOException("Invalid dependency " + i);
+            ids[i] = record(kind, nameNumbers[first], hasNameSecond(kind) ? nameNumbers[second] : second);
+        }
+        return ids;
+    }
+
+    private static boolean hasNameSecond(int pKind) {
+        return pKind == NO_PREFIX;
+    }
+
+    private static boolean isNameNumber(int pNumber, int pNameCount) {
+        return (pNumber >= 0) && (pNumber <= pNameCount);
+    }
+
+    static void writeString(DataOutput pOut, String pValue) throws IOException {
+        byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+        pOut.writeInt(bytes.length);
+        pOut.write(bytes);
+    }
+
+    static String readString(DataInput pIn) throws IOException {
+        int length = pIn.readInt();
+        if ((length < 0) || (length > (1 << 24))) throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        pIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of live dependencies
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (int id = 0; id < count; id++)
+            if (live[id]) size++;
+        return size;
+    }
+
+    /**
+     * Returns a description of the dependency (used for debugging)
+     *
+     * @param pId the dependency id
+     * @return the description
+     */
+    public synchronized String describe(int pId) {
+        switch (kinds[pId]) {
+            case FILE:
+                return (seconds[pId] == 1 ? "exists(" : "missing(") + names[firsts[pId]] + ")";
+            case NO_PREFIX:
+                return "noPrefix(" + names[firsts[pId]] + ", " + names[seconds[pId]] + ")";
+            case JAVA_VERSION:
+                return "javaVersion(" + names[firsts[pId]] + ", " + (seconds[pId] - 1) + ")";
+            default:
+                return "fail()";
+        }
+    }
+
+    /**
+     * Returns the number of dependencies in the store (live or dead)
+     */
+    public synchronized int capacityUsed() {
+        return count;
+    }
+
+    /**
+     * Rebuilds the store with only the given live dependencies (and the names they use), so that the checks of evicted
+     * results stop taking up memory and validation time. This starts the next generation, so the results of evaluations
+     * that are still running aren't cached, and every watch has to be registered again.
+     *
+     * @param pGeneration the generation that the ids belong to
+     * @param pKeep the ids of the dependencies to keep
+     * @return the new id of each old id (-1 if it wasn't kept), or null if the store has been cleared since
+     */
+    public synchronized int[] compact(int pGeneration, BitSet pKeep) {
+        if (pGeneration != generation) return null;
+        int oldCount = count;
+        int[] oldKinds = kinds;
+        int[] oldFirsts = firsts;
+        int[] oldSeconds = seconds;
+        boolean[] oldLive = live;
+        String[] oldNames = names;
+        clear();
+        int[] newIds = new int[oldCount];
+        Arrays.fill(newIds, -1);
+        for (int id = pKeep.nextSetBit(0); (id >= 0) && (id < oldCount); id = pKeep.nextSetBit(id + 1)) {
+            if (!oldLive[id]) continue;
+            int kind = oldKinds[id];
+            int second = hasNameSecond(kind) ? intern(oldNames[oldSeconds[id]]) : oldSeconds[id];
+            newIds[id] = record(kind, intern(oldNames[oldFirsts[id]]), second);
+        }
+        return newIds;
+    }
+
+    /**
+     * Removes everything from the store
+     */
+    public synchronized void clear() {
+
+        /* The arrays are replaced rather than cleared, since a validation may still be reading a snapshot of them */
+
+        generation++;
+        nameIds.clear();
+        names = new String[64];
+        nameCount = 1;
+        kinds = new int[64];
+        firsts = new int[64];
+        seconds = new int[64];
+        live = new boolean[64];
+        watchStates = new byte[64];
+        firstHeads = new int[64];
+        firstLinks = new int[64];
+        count = 0;
+        indexKeys = new long[128];
+        indexValues = new int[128];
+    }
+}
@@ -0,0 +1,151 @@
+package com.diamondq.maven.activator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches the directories behind the file dependencies, so that a long-running process (such as the Maven daemon) only
+ * has to look at what actually changed instead of checking every dependency whenever the context changes.
+ * <p>
+ * There is no background thread. The pending events are drained (without blocking) by {@link #poll(List)} at the start
+ * of each selection.
+ */
+public class DependencyWatcher implements Closeable {
+
+    private final WatchService watchService;
+
+    /**
+     * The watched directories. The same directory may have been registered under more than one path
+     */
+    private final Map<String, WatchKey> keysByPath = new HashMap<>();
+    private final Map<WatchKey, List<File>> pathsByKey = new HashMap<>();
+
+    private final LongAdder events = new LongAdder();
+
+    public DependencyWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Makes sure the directory is watched
+     *
+     * @param pDir the directory
+     * @return true if the directory is watched, or false if it can't be (usually because it doesn't exist)
+     */
+    public synchronized boolean watch(File pDir) {
+        String path = pDir.getPath();
+        WatchKey key = keysByPath.get(path);
+        if ((key != null) && key.isValid()) return true;
+        if (!pDir.isDirectory()) return false;
+        try {
+            key = pDir.toPath()
+                    .register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException ex) {
+            return false;
+        }
+        keysByPath.put(path, key);
+        pathsByKey.computeIfAbsent(key, (k) -> new ArrayList<>()).add(pDir);
+        return true;
+    }
+
+    /**
+     * Drains the pending events without blocking
+     *
+     * @param pChanged receives the paths that were created or deleted
+     * @return false if events may have been lost (an overflow, or a watched directory went away), in which case every
+     *         dependency needs to be checked again
+     */
+    public synchronized boolean poll(List<File> pChanged) {
+        boolean complete = true;
+        WatchKey key;
+        try {
+            key = watchService.poll();
+        } catch (ClosedWatchServiceException ex) {
+            return false;
+        }
+        while (key != null) {
+            List<File> dirs = pathsByKey.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                events.increment();
+                if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || (dirs == null)) {
+                    complete = false;
+                    continue;
+                }
+                String name = ((Path) event.context()).toString();
+                for (File dir : dirs)
+                    pChanged.add(new File(dir, name));
+            }
+            if (!key.reset()) {
+
+                /* The directory is gone (or can no longer be watched) */
+
+                complete = false;
+                List<File> removed = pathsByKey.remove(key);
+                if (removed != null) for (File dir : removed)
+                    keysByPath.remove(dir.getPath());
+            }
+            key = watchService.poll();
+        }
+        return complete;
+    }
+
+    /**
+     * Cancels the watches that none of the live dependencies need anymore (once the dependency store has been compacted
+     * or cleared). The directories are read from the store while the watcher is locked, so a watch that is being
+     * registered for a new dependency at the same time is kept.
+     *
+     * @param pDependencyStore the dependency store
+     * @return the number of cancelled watches
+     */
+    public synchronized int retain(DependencyStore pDependencyStore) {
+        Set<String> needed = pDependencyStore.watchDirectories();
+        int cancelled = 0;
+        for (Iterator<Map.Entry<WatchKey, List<File>>> iterator = pathsByKey.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<WatchKey, List<File>> entry = iterator.next();
+            List<File> dirs = entry.getValue();
+            for (Iterator<File> dirIterator = dirs.iterator(); dirIterator.hasNext(); ) {
+                String path = dirIterator.next().getPath();
+                if (!needed.contains(path)) {
+                    keysByPath.remove(path);
+                    dirIterator.remove();
+                }
+            }
+            if (dirs.isEmpty()) {
+                entry.getKey().cancel();
+                iterator.remove();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Returns a short description of the watcher statistics
+     */
+    public synchronized String getStatistics() {
+        return "Watcher: " + pathsByKey.size() + " directories, " + events.sum() + " events";
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        keysByPath.clear();
+        pathsByKey.clear();
+        watchService.close();
+    }
+}
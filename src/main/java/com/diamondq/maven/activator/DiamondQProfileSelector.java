@@ -34,20 +34,22 @@ public class DiamondQProfileSelector extends DefaultProfileSelector {
     }
 
     /**
-     * Profiles activated by both custom and default activators.
+     * Profiles activated by both custom and default activators. The common selector is safe to call concurrently, so
+     * parallel (-T) builds can select the profiles of different modules at the same time.
      */
     @Override
     public List<Profile> getActiveProfiles(Collection<Profile> profiles, ProfileActivationContext context,
                                            ModelProblemCollector problems) {
 
-        synchronized (this) {
+        if (debugReport.compareAndSet(false, true)) commonSelector.logger.debug(
+                "[DIAMONDQ Profile Activator] Use the -DDiamondQProfileSelectorDebug=true flag to get very detailed tracing"
+                        + " information");
 
-            if (debugReport.compareAndSet(false, true)) commonSelector.logger.debug(
-                    "[DIAMONDQ Profile Activator] Use the -DDiamondQProfileSelectorDebug=true flag to get very detailed tracing"
-                            + " information");
+        return commonSelector.select(profiles, context, problems);
+    }
 
-            return commonSelector.select(profiles, context, problems);
-        }
+    public CommonProfileSelector getCommonSelector() {
+        return commonSelector;
     }
 
 }
@@ -0,0 +1,91 @@
+package com.diamondq.maven.activator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A shared tree of the project directories and their ancestors, used by profile() to walk up to the file system root.
+ * Sibling modules share their ancestor nodes, so each chain is only built once. The nodes only describe the paths;
+ * whether a parentProfiles entry exists is answered by the {@link FileSystemSnapshot} (which lists each parentProfiles
+ * directory once, so the missing entries are known as well as the existing ones).
+ * <p>
+ * The tree is cleared once it reaches a limit, since a long-running process may see any number of directories (a node
+ * that is still in use stays valid, and the tree is simply built again).
+ */
+public class DirectoryTree {
+
+    private static final String PARENT_PROFILES = "parentProfiles";
+
+    private static final int MAX_NODES = 100_000;
+
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+
+    private final Set<File> roots = new HashSet<>(Arrays.asList(File.listRoots()));
+
+    /**
+     * A directory that is not a file system root
+     */
+    public static final class Node {
+
+        /**
+         * The parent directory (null if the parent is a file system root or there isn't one)
+         */
+        public final Node parent;
+
+        /**
+         * The parentProfiles directory within this directory
+         */
+        final File parentProfilesDir;
+
+        /**
+         * The path of the parentProfiles directory, ending with a separator
+         */
+        final String parentProfilesPrefix;
+
+        final String absolutePath;
+
+        Node(Node pParent, String pAbsolutePath) {
+            parent = pParent;
+            absolutePath = pAbsolutePath;
+            parentProfilesDir = new File(pAbsolutePath, PARENT_PROFILES);
+            parentProfilesPrefix = parentProfilesDir.getPath() + File.separator;
+        }
+    }
+
+    /**
+     * Returns the node of the directory
+     *
+     * @param pPath the directory path
+     * @return the node, or null if the directory is a file system root
+     */
+    public Node get(String pPath) {
+        Node node = nodes.get(pPath);
+        if (node != null) return node;
+        File dir = new File(pPath);
+        if (roots.contains(dir)) return null;
+        File parentDir = dir.getParentFile();
+        Node parent = parentDir == null ? null : get(parentDir.getPath());
+        node = new Node(parent, dir.getAbsolutePath());
+        if (nodes.size() >= MAX_NODES) nodes.clear();
+        Node existing = nodes.putIfAbsent(pPath, node);
+        return existing != null ? existing : node;
+    }
+
+    /**
+     * Returns the number of directories in the tree
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Discards every node
+     */
+    public void clear() {
+        nodes.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.building.ModelProblem;
+import org.apache.maven.model.building.ModelProblemCollector;
+import org.apache.maven.model.building.ModelProblemCollectorRequest;
+import org.apache.maven.model.profile.ProfileActivationContext;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The state of evaluating a single profile's compiled script against a single context. Unlike the {@link Expression}
+ * tree, an Evaluation is short-lived and is never shared between threads.
+ * <p>
+ * All problems are reported through the Evaluation so that a result that reported a problem is never cached (otherwise
+ * the problem would only be reported for the first module).
+ * <p>
+ * While a shared sub-expression is being evaluated for the memo (see {@link ExpressionMemo}), every dependency and
+ * property that is recorded is also appended to a journal (duplicates included), so the slice of the journal recorded
+ * by the sub-expression is exactly what it depends on.
+ */
+public class Evaluation implements ModelProblemCollector {
+    private final CommonProfileSelector selector;
+    final Profile profile;
+    final ProfileActivationContext context;
+    final ModelProblemCollector problems;
+    final InputLocation location;
+    final boolean debug;
+    /**
+     * True if the children of an and/or are evaluated cheapest first
+     */
+    final boolean reorder;
+    private final ActivatorTrace trace;
+    private final ExpressionMemo memo;
+    /**
+     * The ids of the dependencies recorded while evaluating this profile
+     */
+    private int[] dependencies = new int[8];
+    private int dependencyCount;
+    /**
+     * The user and system property keys, and the project property keys, read while evaluating this profile
+     */
+    private final List<String> propertyKeys = new ArrayList<>(2);
+    private final List<String> projectPropertyKeys = new ArrayList<>(2);
+    /**
+     * Everything recorded while a sub-expression is evaluated for the memo, in order (created on first use)
+     */
+    private int[] dependencyJournal;
+    private int dependencyJournalSize;
+    private List<String> propertyJournal;
+    private List<String> projectPropertyJournal;
+    private int journalDepth;
+    /**
+     * The number of problems reported while evaluating this profile
+     */
+    int problemCount;
+
+    Evaluation(CommonProfileSelector pSelector, Profile pProfile, ProfileActivationContext pContext,
+               ModelProblemCollector pProblems, InputLocation pLocation, boolean pDebug, ExpressionMemo pMemo,
+               boolean pReorder) {
+        selector = pSelector;
+        profile = pProfile;
+        context = pContext;
+        problems = pProblems;
+        location = pLocation;
+        debug = pDebug;
+        trace = pSelector.logger.getTrace();
+        memo = pMemo;
+        reorder = pReorder;
+    }
+
+    /**
+     * Evaluates a child expression
+     *
+     * @param pExpression the expression
+     * @return the result
+     */
+    boolean evaluate(Expression pExpression) {
+        if (debug) debug("[DIAMONDQ Profile Activator]   evaluate(" + pExpression + ")");
+        boolean result = (memo != null) && pExpression.shared && pExpression.isMemoizable() ?
+                evaluateMemo(pExpression) : pExpression.evaluate(this);
+        trace.record(ActivatorTrace.EXPRESSION, pExpression, profile.getId(), result ? 1 : 0);
+        return result;
+    }
+
+    /**
+     * Evaluates an expression, or reuses its result from earlier in the same select() call
+     */
+    private boolean evaluateMemo(Expression pExpression) {
+        ExpressionMemo.Entry entry = memo.get(pExpression);
+        if (entry != null) {
+            for (int dependency : entry.dependencies)
+                addDependency(dependency);
+            for (String key : entry.propertyKeys)
+                dependOnProperty(key);
+            for (String key : entry.projectPropertyKeys)
+                dependOnProjectProperty(key);
+            if (debug) debug("[DIAMONDQ Profile Activator]   reusing the earlier result " + entry.result);
+            return entry.result;
+        }
+        if (dependencyJournal == null) {
+            dependencyJournal = new int[8];
+            propertyJournal = new ArrayList<>(2);
+            projectPropertyJournal = new ArrayList<>(2);
+        }
+        int dependencyStart = dependencyJournalSize;
+        int propertyStart = propertyJournal.size();
+        int projectPropertyStart = projectPropertyJournal.size();
+        int problemStart = problemCount;
+        boolean result;
+        journalDepth++;
+        try {
+            result = pExpression.evaluate(this);
+        } finally {
+            journalDepth--;
+        }
+        if (problemCount == problemStart) memo.put(pExpression, new ExpressionMemo.Entry(result,
+                Arrays.copyOfRange(dependencyJournal, dependencyStart, dependencyJournalSize),
+                propertyJournal.subList(propertyStart, propertyJournal.size()).toArray(new String[0]),
+                projectPropertyJournal.subList(projectPropertyStart, projectPropertyJournal.size())
+                        .toArray(new String[0])));
+        if (journalDepth == 0) {
+
+            /* The journal is only needed while something is being recorded */
+
+            dependencyJournalSize = 0;
+            propertyJournal.clear();
+            projectPropertyJournal.clear();
+        }
+        return result;
+    }
+
+    String resolveDir(PathTemplate pPath) {
+        return selector.resolveDir(pPath, this);
+    }
+
+    FileSystemSnapshot fileSystem() {
+        return selector.fileSystem;
+    }
+
+    DirectoryTree directoryTree() {
+        return selector.directoryTree;
+    }
+
+    void dependOnFile(File pFile, boolean pExists) {
+        addDependency(selector.dependencyStore.fileDependency(pFile, pExists));
+    }
+
+    void dependOnFile(String pPath, boolean pExists) {
+        addDependency(selector.dependencyStore.fileDependency(pPath, pExists));
+    }
+
+    void dependOnNoPrefix(File pDir, String pPrefix) {
+        addDependency(selector.dependencyStore.noPrefixDependency(pDir, pPrefix));
+    }
+
+    void dependOnJavaVersion(File pDir, int pJavaVersion) {
+        addDependency(selector.dependencyStore.javaVersionDependency(pDir, pJavaVersion));
+    }
+
+    void dependOnProperty(String pKey) {
+        if (journalDepth > 0) propertyJournal.add(pKey);
+        if (!propertyKeys.contains(pKey)) propertyKeys.add(pKey);
+    }
+
+    void dependOnProjectProperty(String pKey) {
+        if (journalDepth > 0) projectPropertyJournal.add(pKey);
+        if (!projectPropertyKeys.contains(pKey)) projectPropertyKeys.add(pKey);
+    }
+
+    void dependOnFail() {
+        addDependency(selector.dependencyStore.failDependency());
+    }
+
+    private void addDependency(int pId) {
+        if (journalDepth > 0) {
+            if (dependencyJournalSize == dependencyJournal.length)
+                dependencyJournal = Arrays.copyOf(dependencyJournal, dependencyJournalSize * 2);
+            dependencyJournal[dependencyJournalSize++] = pId;
+        }
+        for (int i = 0; i < dependencyCount; i++)
+            if (dependencies[i] == pId) return;
+        if (dependencyCount == dependencies.length) dependencies = Arrays.copyOf(dependencies, dependencyCount * 2);
+        dependencies[dependencyCount++] = pId;
+    }
+
+    /**
+     * Returns the ids of the dependencies recorded while evaluating this profile
+     */
+    int[] getDependencies() {
+        return Arrays.copyOf(dependencies, dependencyCount);
+    }
+
+    /**
+     * Returns the fingerprint of the properties read while evaluating this profile
+     *
+     * @return the fingerprint or null if no properties were read
+     */
+    PropertyFingerprint getPropertyFingerprint() {
+        return PropertyFingerprint.of(propertyKeys.toArray(new String[0]), projectPropertyKeys.toArray(new String[0]),
+                context);
+    }
+
+    @Override
+    public void add(ModelProblemCollectorRequest pRequest) {
+        problemCount++;
+        trace.record(ActivatorTrace.PROBLEM, pRequest.getMessage(), null, 0);
+        problems.add(pRequest);
+    }
+
+    void error(String pMessage) {
+        add(new ModelProblemCollectorRequest(ModelProblem.Severity.ERROR, ModelProblem.Version.BASE).setMessage(
+                pMessage).setLocation(location));
+    }
+
+    void debug(String pMsg) {
+        selector.logger.debug(pMsg);
+    }
+}
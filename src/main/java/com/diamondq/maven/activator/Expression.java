@@ -0,0 +1,609 @@
+package com.diamondq.maven.activator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A compiled [DIAMONDQ] activation script. Expressions are immutable and are shared between every module and context
+ * that uses the same script text, so they must never hold any per-evaluation state.
+ */
+public abstract class Expression {
+
+    /**
+     * Set by the {@link ScriptParser} when this expression is part of more than one script, which makes its result
+     * worth reusing within a select() call
+     */
+    volatile boolean shared;
+
+    /**
+     * Evaluates this expression against the given evaluation
+     *
+     * @param pEval the evaluation (profile, context, problem collector, etc.)
+     * @return true if the expression is satisfied
+     */
+    public abstract boolean evaluate(Evaluation pEval);
+
+    /**
+     * Returns true if the result of this expression is worth keeping for the rest of a select() call (see
+     * {@link ExpressionMemo}). Property checks are cheaper to repeat than to look up.
+     */
+    boolean isMemoizable() {
+        return true;
+    }
+
+    /**
+     * Returns the estimated relative cost of evaluating this expression. A property lookup is 1, a file check is 10 and
+     * a directory listing is 20 (see {@link #order(Expression[])}).
+     */
+    abstract int getCost();
+
+    /**
+     * Returns true if evaluating this expression may report a problem. The children of an and/or are never reordered
+     * across such an expression, so the same problems are reported in the same order.
+     */
+    boolean mayReportProblems() {
+        return false;
+    }
+
+    /**
+     * Returns the script text of this expression (used for debugging)
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * Returns the order in which the children of an and/or are evaluated: cheapest first, so that a cheap child can
+     * short-circuit an expensive one. The sort is stable, so children with the same cost keep their order, and children
+     * that may report a problem stay where they are (the children between them are only reordered among themselves).
+     * Since the children have no side effects besides the problems, the result is the same in any order.
+     *
+     * @param pChildren the children in the script order
+     * @return the evaluation order (the same array if nothing moves)
+     */
+    static Expression[] order(Expression[] pChildren) {
+        Expression[] result = null;
+        int start = 0;
+        for (int i = 0; i <= pChildren.length; i++) {
+            if ((i < pChildren.length) && !pChildren[i].mayReportProblems()) continue;
+            if (i - start > 1) {
+                Expression[] segment = Arrays.copyOfRange(pChildren, start, i);
+                Arrays.sort(segment, Comparator.comparingInt(Expression::getCost));
+                for (int j = 0; j < segment.length; j++) {
+                    if ((result == null) && (segment[j] != pChildren[start + j]))
+                        result = pChildren.clone();
+                    if (result != null) result[start + j] = segment[j];
+                }
+            }
+            start = i + 1;
+        }
+        return result == null ? pChildren : result;
+    }
+
+    private static int sumCosts(Expression[] pChildren) {
+        int cost = 0;
+        for (Expression child : pChildren)
+            cost += child.getCost();
+        return cost;
+    }
+
+    private static boolean anyMayReportProblems(Expression[] pChildren) {
+        for (Expression child : pChildren)
+            if (child.mayReportProblems()) return true;
+        return false;
+    }
+
+    /**
+     * or(a, b, ...) - true if any child is true
+     */
+    static final class Or extends Expression {
+        final Expression[] children;
+
+        /**
+         * The children in the order they are evaluated (see {@link #order(Expression[])})
+         */
+        final Expression[] evaluationOrder;
+        private final int cost;
+        private final boolean mayReportProblems;
+
+        Or(List<Expression> pChildren) {
+            children = pChildren.toArray(new Expression[0]);
+            evaluationOrder = order(children);
+            cost = sumCosts(children);
+            mayReportProblems = anyMayReportProblems(children);
+        }
+
+        @Override
+        int getCost() {
+            return cost;
+        }
+
+        @Override
+        boolean mayReportProblems() {
+            return mayReportProblems;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+            for (Expression child : pEval.reorder ? evaluationOrder : children) {
+                if (pEval.evaluate(child)) {
+                    if (pEval.debug)
+                        pEval.debug("[DIAMONDQ Profile Activator]   OR child returned true, so OR is true");
+                    return true;
+                }
+            }
+            if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   no OR child returned true, so OR is false");
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.stream(children).map(Expression::toString).collect(Collectors.joining(", ", "or(", ")"));
+        }
+    }
+
+    /**
+     * and(a, b, ...) - true if all children are true
+     */
+    static final class And extends Expression {
+        final Expression[] children;
+
+        /**
+         * The children in the order they are evaluated (see {@link #order(Expression[])})
+         */
+        final Expression[] evaluationOrder;
+        private final int cost;
+        private final boolean mayReportProblems;
+
+        And(List<Expression> pChildren) {
+            children = pChildren.toArray(new Expression[0]);
+            evaluationOrder = order(children);
+            cost = sumCosts(children);
+            mayReportProblems = anyMayReportProblems(children);
+        }
+
+        @Override
+        int getCost() {
+            return cost;
+        }
+
+        @Override
+        boolean mayReportProblems() {
+            return mayReportProblems;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+            for (Expression child : pEval.reorder ? evaluationOrder : children) {
+                if (!pEval.evaluate(child)) {
+                    if (pEval.debug)
+                        pEval.debug("[DIAMONDQ Profile Activator]   AND child returned false, so AND is false");
+                    return false;
+                }
+            }
+            if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   no AND child returned false, so AND is true");
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.stream(children).map(Expression::toString).collect(Collectors.joining(", ", "and(", ")"));
+        }
+    }
+
+    /**
+     * not(a) - true if the child is false
+     */
+    static final class Not extends Expression {
+        final Expression child;
+
+        Not(Expression pChild) {
+            child = pChild;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return child.isMemoizable();
+        }
+
+        @Override
+        int getCost() {
+            return child.getCost();
+        }
+
+        @Override
+        boolean mayReportProblems() {
+            return child.mayReportProblems();
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+            if (pEval.evaluate(child)) {
+                if (pEval.debug)
+                    pEval.debug("[DIAMONDQ Profile Activator]   NOT child returned true, so NOT is false");
+                return false;
+            }
+            if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   NOT child returned false, so NOT is true");
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "not(" + child + ")";
+        }
+    }
+
+    /**
+     * file(path) / missing(path) - true if the file exists (or is missing)
+     */
+    static final class FileCheck extends Expression {
+        final PathTemplate path;
+        final boolean expectExists;
+
+        FileCheck(String pPath, boolean pExpectExists) {
+            path = PathTemplate.compile(pPath);
+            expectExists = pExpectExists;
+        }
+
+        /**
+         * A stat, plus a lookup per placeholder
+         */
+        @Override
+        int getCost() {
+            return path.isLiteral() ? 10 : 10 + path.names.length;
+        }
+
+        /**
+         * Anything besides ${basedir} may need the full interpolator, which reports the problems it runs into
+         */
+        @Override
+        boolean mayReportProblems() {
+            if (path.complex) return true;
+            if (!path.isLiteral()) for (String name : path.names)
+                if (!"basedir".equals(name)) return true;
+            return false;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+
+            /* Resolve the file to see if it exists */
+
+            String filePath = pEval.resolveDir(path);
+            if (filePath == null) {
+                pEval.dependOnFail();
+                return false;
+            }
+            File file = new File(filePath);
+            boolean exists = pEval.fileSystem().exists(file);
+            pEval.dependOnFile(file, exists);
+            if (exists) {
+                if (pEval.debug) pEval.debug(
+                        "[DIAMONDQ Profile Activator]   file exists so " + expectExists + " -> " + filePath);
+                return expectExists;
+            } else {
+                if (pEval.debug) pEval.debug(
+                        "[DIAMONDQ Profile Activator]   file missing so " + !expectExists + " -> " + filePath);
+                return !expectExists;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (expectExists ? "file(" : "missing(") + path + ")";
+        }
+    }
+
+    /**
+     * profile(name) - true if profiles/name exists or parentProfiles/name exists in the project directory or any of its
+     * parents
+     */
+    static final class ProfileCheck extends Expression {
+        final String name;
+        final FileCheck localCheck;
+        final String parentSuffix;
+        /**
+         * True if the name is a plain file name, so its existence can be answered from the directory listing
+         */
+        final boolean simpleName;
+
+        ProfileCheck(String pName) {
+            name = pName;
+            localCheck = new FileCheck("profiles/" + pName, true);
+            parentSuffix = "/parentProfiles/" + pName;
+            simpleName = !pName.isEmpty() && (pName.indexOf('/') < 0) && (pName.indexOf(File.separatorChar) < 0)
+                    && !pName.equals(".") && !pName.equals("..");
+        }
+
+        /**
+         * A stat, and then a listing (or a stat) for every ancestor
+         */
+        @Override
+        int getCost() {
+            return localCheck.getCost() + 30;
+        }
+
+        @Override
+        boolean mayReportProblems() {
+            return localCheck.mayReportProblems();
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+
+            /* First, check for the entry in the profile directory */
+
+            if (pEval.evaluate(localCheck)) {
+                if (pEval.debug)
+                    pEval.debug("[DIAMONDQ Profile Activator]   " + localCheck + " returned true, so true");
+                return true;
+            }
+
+            /* Then recursive up the tree checking in each parentProfile directory */
+
+            String projectDir = pEval.resolveDir(PathTemplate.PROJECT_DIR);
+            if (projectDir == null) {
+                pEval.dependOnFail();
+                return false;
+            }
+            FileSystemSnapshot fileSystem = pEval.fileSystem();
+            for (DirectoryTree.Node node = pEval.directoryTree().get(projectDir); node != null; node = node.parent) {
+                String path;
+                boolean exists;
+                if (simpleName) {
+                    path = node.parentProfilesPrefix + name;
+                    exists = fileSystem.index(node.parentProfilesDir).contains(name);
+                } else {
+                    path = new File(node.absolutePath, parentSuffix).getAbsolutePath();
+                    exists = fileSystem.exists(new File(path));
+                }
+                pEval.dependOnFile(path, exists);
+                if (exists) {
+                    if (pEval.debug)
+                        pEval.debug("[DIAMONDQ Profile Activator]   parent profile exists so true -> " + path);
+                    return true;
+                }
+                if (pEval.debug)
+                    pEval.debug("[DIAMONDQ Profile Activator]   parent profile missing -> " + path);
+            }
+            if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   no profiles found, so false");
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "profile(" + name + ")";
+        }
+    }
+
+    /**
+     * property(key), property(key=value), property(!key), property(!key=value)
+     */
+    static final class PropertyCheck extends Expression {
+        final String key;
+        final String value;
+        final boolean reverse;
+
+        PropertyCheck(String pKey, String pValue, boolean pReverse) {
+            key = pKey;
+            value = pValue;
+            reverse = pReverse;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return false;
+        }
+
+        @Override
+        int getCost() {
+            return 1;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+
+            /* Now look for the property */
+
+            String userValue = pEval.context.getUserProperties().get(key);
+            String systemValue = pEval.context.getSystemProperties().get(key);
+
+            /* The cached result is only valid as long as the property doesn't change */
+
+            pEval.dependOnProperty(key);
+
+            String sysValue = userValue != null ? userValue : systemValue;
+            if (sysValue != null && !sysValue.isEmpty()) {
+                if (value == null) {
+                    if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   property \"" + key + "\" exists so "
+                            + !reverse);
+                    return !reverse;
+                } else if (value.equals(sysValue)) {
+                    if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   property \"" + key + "\" -> \""
+                            + sysValue + "\" equals to \"" + value + "\" so " + !reverse);
+                    return !reverse;
+                } else {
+                    if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   property \"" + key + "\" -> \""
+                            + sysValue + "\" not equals to \"" + value + "\" so " + reverse);
+                    return reverse;
+                }
+            } else {
+                if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   property \"" + key
+                        + "\" does not exist so " + reverse);
+                return reverse;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "property(" + (reverse ? "!" : "") + key + (value == null ? "" : "=" + value) + ")";
+        }
+    }
+
+    /**
+     * type(name) - true if a file with the prefix "type-{name}" is present in the profiles directory
+     */
+    static final class TypeCheck extends Expression {
+        final String type;
+        final String prefix;
+
+        TypeCheck(String pType) {
+            type = pType;
+            prefix = "type-" + pType;
+        }
+
+        @Override
+        int getCost() {
+            return 20;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+            String filePath = pEval.resolveDir(PathTemplate.PROFILES_DIR);
+            if (filePath == null) {
+                pEval.dependOnFail();
+                return false;
+            }
+            File profilesDir = new File(filePath);
+            ProfilesIndex index = pEval.fileSystem().index(profilesDir);
+            String match = index.findPrefix(prefix);
+            if (match != null) {
+                File testFile = new File(profilesDir, match);
+                if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   type \"" + testFile + "\" exists so true");
+                pEval.dependOnFile(testFile, true);
+                return true;
+            }
+            if (pEval.debug) {
+                if (index.exists())
+                    pEval.debug("[DIAMONDQ Profile Activator]   no type \"" + prefix + "\" exists so false");
+                else pEval.debug(
+                        "[DIAMONDQ Profile Activator]   profiles dir \"" + filePath + "\" doesn't exists so false");
+            }
+
+            /* This covers the directory being missing as well, since a missing directory has no matches */
+
+            pEval.dependOnNoPrefix(profilesDir, prefix);
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "type(" + type + ")";
+        }
+    }
+
+    /**
+     * jdk(version), jdk(=version), jdk(&lt;version), jdk(&lt;=version), jdk(&gt;version), jdk(&gt;=version)
+     */
+    static final class JdkCheck extends Expression {
+        static final int EQ = 0;
+        static final int LT = 1;
+        static final int LE = 2;
+        static final int GT = 3;
+        static final int GE = 4;
+        private static final String[] OPERATORS = {"==", "<", "<=", ">", ">="};
+
+        final int operator;
+        final int version;
+
+        JdkCheck(int pOperator, int pVersion) {
+            operator = pOperator;
+            version = pVersion;
+        }
+
+        @Override
+        int getCost() {
+            return 20;
+        }
+
+        boolean matches(int pJavaVer) {
+            switch (operator) {
+                case LT:
+                    return pJavaVer < version;
+                case LE:
+                    return pJavaVer <= version;
+                case GT:
+                    return pJavaVer > version;
+                case GE:
+                    return pJavaVer >= version;
+                default:
+                    return pJavaVer == version;
+            }
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+
+            /* Check to see what type-java-XX is present */
+
+            String filePath = pEval.resolveDir(PathTemplate.PROFILES_DIR);
+            if (filePath == null) {
+                pEval.dependOnFail();
+                return false;
+            }
+            File profilesDir = new File(filePath);
+            int javaVer = pEval.fileSystem().index(profilesDir).getJavaVersion();
+            pEval.dependOnJavaVersion(profilesDir, javaVer);
+            if (javaVer == -1) {
+                if (pEval.debug) pEval.debug(
+                        "[DIAMONDQ Profile Activator]   No profiles/type-java-XXX present when requesting a jdk so false");
+                return false;
+            }
+            if (matches(javaVer)) {
+                if (pEval.debug) pEval.debug(
+                        "[DIAMONDQ Profile Activator]   jdk " + javaVer + " " + OPERATORS[operator] + " " + version
+                                + " so true");
+                return true;
+            }
+            if (pEval.debug) pEval.debug("[DIAMONDQ Profile Activator]   jdk " + javaVer + " is false");
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "jdk(" + (operator == EQ ? "" : OPERATORS[operator]) + version + ")";
+        }
+    }
+
+    /**
+     * A script fragment that could not be compiled. The problem is only reported if the fragment is actually reached
+     * during evaluation, which matches how the scripts were always interpreted.
+     */
+    static final class Invalid extends Expression {
+        final String text;
+        final String message;
+
+        Invalid(String pText, String pMessage) {
+            text = pText;
+            message = pMessage;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return false;
+        }
+
+        @Override
+        int getCost() {
+            return 0;
+        }
+
+        @Override
+        boolean mayReportProblems() {
+            return true;
+        }
+
+        @Override
+        public boolean evaluate(Evaluation pEval) {
+            pEval.error("[DIAMONDQ Profile Activator] " + message + " when activating the profile " + pEval.profile.getId());
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
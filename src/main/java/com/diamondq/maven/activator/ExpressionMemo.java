@@ -0,0 +1,68 @@
+package com.diamondq.maven.activator;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The results of the sub-expressions evaluated during a single select() call. Since compiled expressions are shared by
+ * their normalized text (see {@link ScriptParser}), the same sub-expression in different profiles of a model is the same
+ * instance, and it only needs to be evaluated once for the context. Only the sub-expressions that the parser has seen
+ * in more than one script are kept.
+ * <p>
+ * Each result keeps the dependencies and properties that were recorded while it was evaluated, so that every profile
+ * that reuses it still records them (and its cached result is invalidated in the same way). A result that reported a
+ * problem is never kept, so the problem is reported for each profile.
+ * <p>
+ * A memo belongs to a single select() call on a single thread.
+ */
+final class ExpressionMemo {
+
+    /**
+     * The generation of the dependency store when the memo was created. The dependency ids in the memo are only
+     * meaningful in this generation, so every result that may have reused them is checked against it.
+     */
+    final int generation;
+
+    static final class Entry {
+        final boolean result;
+        final int[] dependencies;
+        final String[] propertyKeys;
+        final String[] projectPropertyKeys;
+
+        Entry(boolean pResult, int[] pDependencies, String[] pPropertyKeys, String[] pProjectPropertyKeys) {
+            result = pResult;
+            dependencies = pDependencies;
+            propertyKeys = pPropertyKeys;
+            projectPropertyKeys = pProjectPropertyKeys;
+        }
+    }
+
+    /**
+     * Created on first use, since most select() calls are answered by the cache
+     */
+    private Map<Expression, Entry> entries;
+
+    private int hits;
+
+    ExpressionMemo(int pGeneration) {
+        generation = pGeneration;
+    }
+
+    Entry get(Expression pExpression) {
+        Entry entry = entries == null ? null : entries.get(pExpression);
+        if (entry != null) hits++;
+        return entry;
+    }
+
+    void put(Expression pExpression, Entry pEntry) {
+        if (entries == null) entries = new IdentityHashMap<>();
+        entries.put(pExpression, pEntry);
+    }
+
+    /**
+     * Returns the number of evaluations that were saved
+     */
+    int getHits() {
+        return hits;
+    }
+}
@@ -0,0 +1,299 @@
+package com.diamondq.maven.activator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the file system state used by the scripts and by the dependency checks. During a build session every
+ * path is only stat'ed (and every directory only listed) once. Outside a session (for example, when embedded in an IDE
+ * that never reports session boundaries) every call goes straight to the file system, so changes are always seen by the
+ * next dependency validation.
+ * <p>
+ * When manifests are enabled, a profiles directory with an up to date manifest (see {@link ProfilesIndex#MANIFEST}) is
+ * read from the manifest instead of being listed.
+ */
+public class FileSystemSnapshot {
+
+    /**
+     * Marker for a path that is not a directory (or can't be listed)
+     */
+    private static final String[] NOT_A_DIRECTORY = new String[0];
+
+    private final ConcurrentMap<String, Boolean> existsCache = new ConcurrentHashMap<>();
+
+    /**
+     * Sorted directory listings
+     */
+    private final ConcurrentMap<String, String[]> listCache = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes of profiles directories. Outside a session they are revalidated against the directory's modification time
+     */
+    private final ConcurrentMap<String, ProfilesIndex> indexCache = new ConcurrentHashMap<>();
+
+    private volatile boolean inSession;
+
+    private volatile boolean manifests;
+
+    /**
+     * Outside a session the indexes are kept until they change, so there is a limit to how many are kept
+     */
+    private static final int MAX_INDEXES = 10_000;
+
+    /**
+     * The coarsest modification time granularity that is expected (FAT has 2 seconds). A directory that changes within
+     * this window of being listed may keep the same modification time.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2_000L;
+
+    private final LongAdder statCalls = new LongAdder();
+    private final LongAdder listCalls = new LongAdder();
+    private final LongAdder savedCalls = new LongAdder();
+    private final LongAdder manifestReads = new LongAdder();
+
+    /**
+     * Starts caching the file system state. Anything cached from a previous session is discarded.
+     */
+    public void startSession() {
+        clear();
+        inSession = true;
+    }
+
+    /**
+     * Stops caching the file system state
+     */
+    public void endSession() {
+        inSession = false;
+        clear();
+    }
+
+    public boolean isInSession() {
+        return inSession;
+    }
+
+    /**
+     * Sets whether the profiles directories are read from their manifests. The indexes are rebuilt if this changes.
+     *
+     * @param pManifests true to use the manifests
+     */
+    public void setManifests(boolean pManifests) {
+        if (manifests == pManifests) return;
+        manifests = pManifests;
+        indexCache.clear();
+    }
+
+    /**
+     * Returns whether the file exists
+     *
+     * @param pFile the file
+     * @return true if it exists
+     */
+    public boolean exists(File pFile) {
+        if (!inSession) {
+            statCalls.increment();
+            return pFile.exists();
+        }
+        String path = pFile.getPath();
+        Boolean result = existsCache.get(path);
+        if (result != null) {
+            savedCalls.increment();
+            return result;
+        }
+
+        /* If the parent directory has already been listed, then the answer is already known */
+
+        File parent = pFile.getParentFile();
+        String[] siblings = parent == null ? null : listCache.get(parent.getPath());
+        if (siblings != null) {
+            savedCalls.increment();
+            result = (siblings != NOT_A_DIRECTORY) && (Arrays.binarySearch(siblings, pFile.getName()) >= 0);
+        } else {
+            statCalls.increment();
+            result = pFile.exists();
+        }
+        existsCache.put(path, result);
+        return result;
+    }
+
+    /**
+     * Returns the sorted names of the files in the directory
+     *
+     * @param pDir the directory
+     * @return the names or null if the directory doesn't exist (or can't be listed)
+     */
+    public String[] list(File pDir) {
+        if (!inSession) {
+            listCalls.increment();
+            String[] names = pDir.list();
+            if (names != null) Arrays.sort(names);
+            return names;
+        }
+        String path = pDir.getPath();
+        String[] names = listCache.get(path);
+        if (names != null) {
+            savedCalls.increment();
+            return names == NOT_A_DIRECTORY ? null : names;
+        }
+        listCalls.increment();
+        names = pDir.list();
+        if (names != null) Arrays.sort(names);
+        listCache.put(path, names == null ? NOT_A_DIRECTORY : names);
+        return names;
+    }
+
+    /**
+     * Returns the index of a profiles directory. Within a session the index is built once, and outside a session it is
+     * reused as long as the directory's modification time hasn't changed. Since the modification time has a limited
+     * granularity, an index isn't kept if the directory was modified within that window of the time it was listed (a
+     * second change in the same window wouldn't be noticed). Such a directory is listed again until it settles.
+     *
+     * @param pDir the directory
+     * @return the index
+     */
+    public ProfilesIndex index(File pDir) {
+        String path = pDir.getPath();
+        ProfilesIndex index = indexCache.get(path);
+        long lastModified;
+        if (inSession) {
+            if (index != null) {
+                savedCalls.increment();
+                return index;
+            }
+            lastModified = 0L;
+        } else {
+            statCalls.increment();
+            lastModified = pDir.lastModified();
+            if ((index != null) && (index.lastModified == lastModified)) {
+                savedCalls.increment();
+                return index;
+            }
+            if (lastModified == 0L) {
+                if (indexCache.size() >= MAX_INDEXES) indexCache.clear();
+                indexCache.put(path, ProfilesIndex.MISSING);
+                return ProfilesIndex.MISSING;
+            }
+        }
+        long listedAt = System.currentTimeMillis();
+        String[] names = manifests ? readManifest(pDir, lastModified) : null;
+        if (names == null) names = list(pDir);
+        else if (inSession) listCache.put(path, names);
+        index = names == null ? ProfilesIndex.MISSING : new ProfilesIndex(names, lastModified);
+        if (!inSession) {
+            if (listedAt - lastModified < RACY_WINDOW_MILLIS) {
+                indexCache.remove(path);
+                return index;
+            }
+            if (indexCache.size() >= MAX_INDEXES) indexCache.clear();
+        }
+        indexCache.put(path, index);
+        return index;
+    }
+
+    /**
+     * Reads the manifest of a profiles directory. The manifest is only used if it was written after the last change to
+     * the directory (otherwise a marker may have been added or removed since). Within a session, the names are also
+     * used as the directory's listing, so the markers don't need to be checked one by one.
+     *
+     * @param pDir the directory
+     * @param pLastModified the directory's modification time (zero if it hasn't been checked)
+     * @return the sorted names of the files in the directory (including the manifest), or null if there is no usable
+     * manifest
+     */
+    private String[] readManifest(File pDir, long pLastModified) {
+        Path manifest = pDir.toPath().resolve(ProfilesIndex.MANIFEST);
+        BasicFileAttributes attributes;
+        statCalls.increment();
+        try {
+            attributes = Files.readAttributes(manifest, BasicFileAttributes.class);
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+        long dirModified = pLastModified;
+        if (dirModified == 0L) {
+            statCalls.increment();
+            dirModified = pDir.lastModified();
+        }
+        if (!attributes.isRegularFile() || (attributes.lastModifiedTime().toMillis() < dirModified)) return null;
+
+        /* Read it in one go (a manifest is small, and mapping it would keep it locked on Windows) */
+
+        manifestReads.increment();
+        String content;
+        try {
+            content = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+
+        /* One name per line (blank lines and lines starting with # are ignored) */
+
+        List<String> names = new ArrayList<>();
+        names.add(ProfilesIndex.MANIFEST);
+        for (String line : content.split("\\r?\\n")) {
+            String name = line.trim();
+            if (!name.isEmpty() && (name.charAt(0) != '#') && !ProfilesIndex.MANIFEST.equals(name)) names.add(name);
+        }
+        String[] result = names.toArray(new String[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Discards anything known about the path (and the listing of its parent directory)
+     *
+     * @param pFile the path
+     */
+    public void invalidate(File pFile) {
+        existsCache.remove(pFile.getPath());
+        listCache.remove(pFile.getPath());
+        indexCache.remove(pFile.getPath());
+        File parent = pFile.getParentFile();
+        if (parent != null) {
+            listCache.remove(parent.getPath());
+            indexCache.remove(parent.getPath());
+        }
+    }
+
+    /**
+     * Discards everything that has been cached
+     */
+    public void clear() {
+        existsCache.clear();
+        listCache.clear();
+        indexCache.clear();
+    }
+
+    public long getStatCalls() {
+        return statCalls.sum();
+    }
+
+    public long getListCalls() {
+        return listCalls.sum();
+    }
+
+    public long getSavedCalls() {
+        return savedCalls.sum();
+    }
+
+    public long getManifestReads() {
+        return manifestReads.sum();
+    }
+
+    /**
+     * Returns a short description of the file system statistics
+     */
+    public String getStatistics() {
+        return "File system: " + statCalls.sum() + " stat calls, " + listCalls.sum() + " list calls, "
+                + savedCalls.sum() + " calls saved, " + manifestReads.sum() + " manifests read";
+    }
+}
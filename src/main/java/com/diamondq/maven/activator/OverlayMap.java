@@ -0,0 +1,96 @@
+package com.diamondq.maven.activator;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A read-only view of a map with one extra entry on top. Nothing is copied, so creating the view is cheap no matter how
+ * large the underlying map is. If the underlying map also has the extra key, the extra entry wins.
+ */
+public final class OverlayMap extends AbstractMap<String, String> {
+
+    private final Map<String, String> delegate;
+    private final String extraKey;
+    private final String extraValue;
+
+    public OverlayMap(Map<String, String> pDelegate, String pExtraKey, String pExtraValue) {
+        delegate = pDelegate;
+        extraKey = pExtraKey;
+        extraValue = pExtraValue;
+    }
+
+    Map<String, String> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String get(Object pKey) {
+        return extraKey.equals(pKey) ? extraValue : delegate.get(pKey);
+    }
+
+    @Override
+    public boolean containsKey(Object pKey) {
+        return extraKey.equals(pKey) || delegate.containsKey(pKey);
+    }
+
+    @Override
+    public int size() {
+        return delegate.containsKey(extraKey) ? delegate.size() : delegate.size() + 1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OverlayMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the underlying entries (skipping the extra key) and then the extra entry. The entries are immutable.
+     */
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+        private final Iterator<Entry<String, String>> delegateIterator = delegate.entrySet().iterator();
+        private Entry<String, String> next;
+        private boolean extraReturned;
+
+        @Override
+        public boolean hasNext() {
+            while ((next == null) && delegateIterator.hasNext()) {
+                Entry<String, String> entry = delegateIterator.next();
+                if (!Objects.equals(extraKey, entry.getKey()))
+                    next = new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+            }
+            return (next != null) || !extraReturned;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (next != null) {
+                Entry<String, String> result = next;
+                next = null;
+                return result;
+            }
+            extraReturned = true;
+            return new SimpleImmutableEntry<>(extraKey, extraValue);
+        }
+    }
+}
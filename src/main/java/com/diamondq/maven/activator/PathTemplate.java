@@ -0,0 +1,151 @@
+package com.diamondq.maven.activator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A path from a script, compiled once into literal text and ${...} placeholders. Resolving a template is a few map
+ * lookups (see {@link CommonProfileSelector#resolveDir(PathTemplate, Evaluation)}) rather than a new interpolator.
+ * <p>
+ * Anything the simple form can't represent exactly (nested or empty placeholders) is marked as complex and is left to
+ * the full interpolator.
+ */
+public final class PathTemplate {
+
+    /**
+     * The project directory itself
+     */
+    static final PathTemplate PROJECT_DIR = compile("");
+
+    /**
+     * The profiles directory within the project directory
+     */
+    static final PathTemplate PROFILES_DIR = compile("profiles");
+
+    final String text;
+
+    /**
+     * The literal text around the placeholders (one more than the placeholders), or null if there are no placeholders
+     */
+    final String[] literals;
+
+    /**
+     * The placeholder names
+     */
+    final String[] names;
+
+    /**
+     * True if the path refers to ${basedir} (which can't be resolved without a project directory)
+     */
+    final boolean usesBasedir;
+
+    /**
+     * True if the path needs the full interpolator
+     */
+    final boolean complex;
+
+    /**
+     * The last resolution in each project directory, since aligning a path to the project directory is comparatively
+     * expensive. Templates are shared by every module, so this is cleared once it reaches a limit.
+     */
+    private final ConcurrentMap<File, Resolution> resolutions = new ConcurrentHashMap<>();
+
+    private static final int MAX_RESOLUTIONS = 256;
+
+    private static final class Resolution {
+        final String path;
+        final String aligned;
+
+        Resolution(String pPath, String pAligned) {
+            path = pPath;
+            aligned = pAligned;
+        }
+    }
+
+    private PathTemplate(String pText, String[] pLiterals, String[] pNames, boolean pComplex) {
+        text = pText;
+        literals = pLiterals;
+        names = pNames;
+        usesBasedir = pText.contains("${basedir}");
+        complex = pComplex;
+    }
+
+    /**
+     * Compiles a path
+     *
+     * @param pText the path text
+     * @return the template
+     */
+    public static PathTemplate compile(String pText) {
+        int start = pText.indexOf("${");
+        if (start < 0) return new PathTemplate(pText, null, null, false);
+
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int offset = 0;
+        while (start >= 0) {
+            int end = pText.indexOf('}', start + 2);
+            if (end < 0) break;
+            String name = pText.substring(start + 2, end);
+            if (name.isEmpty() || name.contains("${")) return new PathTemplate(pText, null, null, true);
+            literals.add(pText.substring(offset, start));
+            names.add(name);
+            offset = end + 1;
+            start = pText.indexOf("${", offset);
+        }
+        if (names.isEmpty()) return new PathTemplate(pText, null, null, false);
+        literals.add(pText.substring(offset));
+        return new PathTemplate(pText, literals.toArray(new String[0]), names.toArray(new String[0]), false);
+    }
+
+    /**
+     * Returns true if the path has no placeholders
+     */
+    public boolean isLiteral() {
+        return (literals == null) && !complex;
+    }
+
+    /**
+     * Builds the path from the placeholder values
+     *
+     * @param pValues the values (in the order of the names)
+     * @return the path
+     */
+    String format(String[] pValues) {
+        StringBuilder sb = new StringBuilder(text.length() + 64);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]);
+            sb.append(pValues[i]);
+        }
+        sb.append(literals[names.length]);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the aligned path if the last resolution in the project directory was for the same interpolated path
+     *
+     * @param pBasedir the project directory (nothing is cached without one)
+     * @param pPath the interpolated path
+     * @return the aligned path or null
+     */
+    String getAligned(File pBasedir, String pPath) {
+        if (pBasedir == null) return null;
+        Resolution resolution = resolutions.get(pBasedir);
+        if ((resolution != null) && resolution.path.equals(pPath)) return resolution.aligned;
+        return null;
+    }
+
+    void setAligned(File pBasedir, String pPath, String pAligned) {
+        if (pBasedir == null) return;
+        if (resolutions.size() >= MAX_RESOLUTIONS) resolutions.clear();
+        resolutions.put(pBasedir, new Resolution(pPath, pAligned));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -4,6 +4,7 @@ import org.codehaus.plexus.logging.Logger;
 
 public class PlexusActivatorLogger implements ActivatorLogger {
     private final Logger mLogger;
+    private final ActivatorTrace mTrace = new ActivatorTrace();
 
     public PlexusActivatorLogger(Logger pLogger) {
         mLogger = pLogger;
@@ -34,4 +35,9 @@ public class PlexusActivatorLogger implements ActivatorLogger {
     public boolean isDebugEnabled() {
         return mLogger.isDebugEnabled();
     }
+
+    @Override
+    public ActivatorTrace getTrace() {
+        return mTrace;
+    }
 }
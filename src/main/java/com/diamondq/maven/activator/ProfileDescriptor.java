@@ -0,0 +1,103 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Activation;
+import org.apache.maven.model.ActivationProperty;
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.building.ModelProblemCollector;
+import org.apache.maven.model.profile.ProfileActivationContext;
+import org.apache.maven.model.profile.activation.ProfileActivator;
+import org.apache.maven.model.profile.activation.PropertyProfileActivator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the selector needs to know about a profile that doesn't depend on the context: which activators apply to it,
+ * whether it is a [DIAMONDQ] profile (and its compiled script), and whether it is active by default. This saves
+ * scanning every activator for every profile, several times per select() call.
+ * <p>
+ * The descriptors are built once per select() call. They aren't kept between calls, since Maven interpolates new
+ * profiles for each model build (so an index by profile identity rarely hits), and two profiles with the same id and
+ * script may still differ in the rest of their activation.
+ * <p>
+ * The activators are assumed to decide {@link ProfileActivator#presentInConfig} from the profile alone (which is true
+ * of all the standard ones).
+ */
+final class ProfileDescriptor {
+
+    private static final ProfileActivator[] NO_ACTIVATORS = new ProfileActivator[0];
+
+    /**
+     * The activators that are present in the profile's configuration
+     */
+    final ProfileActivator[] activators;
+
+    /**
+     * The script if this is a [DIAMONDQ] profile (and the property activator applies), otherwise null
+     */
+    final String script;
+
+    /**
+     * The location of the [DIAMONDQ] property (for the problems)
+     */
+    final InputLocation location;
+
+    final boolean activeByDefault;
+
+    /**
+     * The compiled script (compiled on first use)
+     */
+    private volatile Expression expression;
+
+    private ProfileDescriptor(Profile pProfile, ProfileActivator[] pActivators, boolean pPropertyActivated) {
+        Activation activation = pProfile.getActivation();
+        ActivationProperty property = activation == null ? null : activation.getProperty();
+        activators = pActivators;
+        if (pPropertyActivated && (property != null) && "[DIAMONDQ]".equals(property.getName())) {
+            script = property.getValue();
+            location = property.getLocation("");
+        } else {
+            script = null;
+            location = null;
+        }
+        activeByDefault = (activation != null) && activation.isActiveByDefault();
+    }
+
+    /**
+     * Builds the descriptor of a profile
+     *
+     * @param pProfile the profile
+     * @param pActivatorList the activators
+     * @param pContext the context (only passed on to the activators)
+     * @param pProblems the problem collector (only passed on to the activators)
+     * @return the descriptor
+     */
+    static ProfileDescriptor of(Profile pProfile, List<ProfileActivator> pActivatorList,
+                                ProfileActivationContext pContext, ModelProblemCollector pProblems) {
+        List<ProfileActivator> applicable = null;
+        boolean propertyActivated = false;
+        for (ProfileActivator activator : pActivatorList) {
+            if (activator.presentInConfig(pProfile, pContext, pProblems)) {
+                if (applicable == null) applicable = new ArrayList<>(2);
+                applicable.add(activator);
+                if (activator instanceof PropertyProfileActivator) propertyActivated = true;
+            }
+        }
+        return new ProfileDescriptor(pProfile, applicable == null ? NO_ACTIVATORS : applicable.toArray(NO_ACTIVATORS),
+                propertyActivated);
+    }
+
+    /**
+     * Returns the compiled script (including the automatic skip check)
+     *
+     * @param pParser the parser
+     * @param pProfileId the profile id
+     * @return the compiled script
+     */
+    Expression getExpression(ScriptParser pParser, String pProfileId) {
+        Expression result = expression;
+        if (result == null) expression = result = pParser.compileProfile(pProfileId, script);
+        return result;
+    }
+}
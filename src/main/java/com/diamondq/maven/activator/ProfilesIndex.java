@@ -0,0 +1,106 @@
+package com.diamondq.maven.activator;
+
+import java.util.Arrays;
+
+/**
+ * An index over the marker files in a profiles directory. The names are sorted, so prefix lookups (type()) are a binary
+ * search, and the java versions of the type-java-XX markers are parsed once (jdk()). The directory's modification time
+ * is recorded so the index can be revalidated with a single stat.
+ * <p>
+ * The names come from listing the directory, or from its manifest: a file named {@value #MANIFEST} in the directory
+ * with the name of one marker per line (including the type-java-XX markers for the java versions). A setup script that
+ * creates the markers can write the manifest last, so that a slow file system doesn't have to list the directory.
+ */
+public final class ProfilesIndex {
+
+    /**
+     * The index of a directory that doesn't exist
+     */
+    static final ProfilesIndex MISSING = new ProfilesIndex(null, 0L);
+
+    static final String JAVA_PREFIX = "type-java-";
+
+    /**
+     * The name of the manifest file
+     */
+    public static final String MANIFEST = ".diamondq-manifest";
+
+    /**
+     * The sorted marker names (null if the directory doesn't exist)
+     */
+    private final String[] names;
+
+    /**
+     * The sorted java versions
+     */
+    private final int[] javaVersions;
+
+    final long lastModified;
+
+    ProfilesIndex(String[] pSortedNames, long pLastModified) {
+        names = pSortedNames;
+        lastModified = pLastModified;
+
+        /* Parse the java versions (markers with a non-numeric version are ignored) */
+
+        int[] versions = new int[0];
+        if (pSortedNames != null) {
+            int start = Arrays.binarySearch(pSortedNames, JAVA_PREFIX);
+            if (start < 0) start = -(start + 1);
+            int count = 0;
+            versions = new int[4];
+            for (int i = start; (i < pSortedNames.length) && pSortedNames[i].startsWith(JAVA_PREFIX); i++) {
+                try {
+                    int version = Integer.parseInt(pSortedNames[i].substring(JAVA_PREFIX.length()));
+                    if (count == versions.length) versions = Arrays.copyOf(versions, count * 2);
+                    versions[count++] = version;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            versions = Arrays.copyOf(versions, count);
+            Arrays.sort(versions);
+        }
+        javaVersions = versions;
+    }
+
+    /**
+     * Returns true if the directory exists
+     */
+    public boolean exists() {
+        return names != null;
+    }
+
+    /**
+     * Returns the first marker (in sorted order) that starts with the prefix
+     *
+     * @param pPrefix the prefix
+     * @return the marker name or null if there is no match
+     */
+    public String findPrefix(String pPrefix) {
+        if (names == null) return null;
+        int offset = Arrays.binarySearch(names, pPrefix);
+        if (offset >= 0) return names[offset];
+        offset = -(offset + 1);
+        if ((offset < names.length) && names[offset].startsWith(pPrefix)) return names[offset];
+        return null;
+    }
+
+    /**
+     * Returns true if there is a marker with the exact name
+     *
+     * @param pName the name
+     * @return true if present
+     */
+    public boolean contains(String pName) {
+        return (names != null) && (Arrays.binarySearch(names, pName) >= 0);
+    }
+
+    /**
+     * Returns the java version declared by the type-java-XX markers. If there is more than one, the highest wins.
+     *
+     * @return the java version or -1 if there is none
+     */
+    public int getJavaVersion() {
+        return javaVersions.length == 0 ? -1 : javaVersions[javaVersions.length - 1];
+    }
+}
@@ -0,0 +1,91 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.profile.ProfileActivationContext;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The properties that a cached result read, along with their values. A result is reused for a context only if the same
+ * keys have the same values in that context, so contexts that only differ in unrelated properties share the result.
+ * <p>
+ * The user and system values of a key are both kept (the user value wins, but the result is only the same if neither
+ * changes). Project properties are specific to a module, so they are looked up in the same project's context when the
+ * result is looked up.
+ */
+public final class PropertyFingerprint {
+
+    /**
+     * The user and system property keys
+     */
+    final String[] keys;
+
+    /**
+     * The project property keys
+     */
+    final String[] projectKeys;
+
+    /**
+     * The user and system value of each key, followed by the value of each project key (null if it isn't set)
+     */
+    final String[] values;
+
+    PropertyFingerprint(String[] pKeys, String[] pProjectKeys, String[] pValues) {
+        keys = pKeys;
+        projectKeys = pProjectKeys;
+        values = pValues;
+    }
+
+    /**
+     * Creates the fingerprint of the keys against the context
+     *
+     * @param pKeys the user and system property keys
+     * @param pProjectKeys the project property keys
+     * @param pContext the context
+     * @return the fingerprint or null if there are no keys
+     */
+    static PropertyFingerprint of(String[] pKeys, String[] pProjectKeys, ProfileActivationContext pContext) {
+        if ((pKeys.length == 0) && (pProjectKeys.length == 0)) return null;
+        String[] values = new String[pKeys.length * 2 + pProjectKeys.length];
+        int v = 0;
+        if (pKeys.length > 0) {
+            Map<String, String> userProperties = pContext.getUserProperties();
+            Map<String, String> systemProperties = pContext.getSystemProperties();
+            for (String key : pKeys) {
+                values[v++] = userProperties.get(key);
+                values[v++] = systemProperties.get(key);
+            }
+        }
+        if (pProjectKeys.length > 0) {
+            Map<String, String> projectProperties = pContext.getProjectProperties();
+            for (String key : pProjectKeys)
+                values[v++] = projectProperties == null ? null : projectProperties.get(key);
+        }
+        return new PropertyFingerprint(pKeys, pProjectKeys, values);
+    }
+
+    /**
+     * Returns true if the properties have the same values in the context
+     *
+     * @param pContext the context
+     * @return true if they match
+     */
+    boolean matches(ProfileActivationContext pContext) {
+        int v = 0;
+        if (keys.length > 0) {
+            Map<String, String> userProperties = pContext.getUserProperties();
+            Map<String, String> systemProperties = pContext.getSystemProperties();
+            for (String key : keys) {
+                if (!Objects.equals(values[v++], userProperties.get(key))) return false;
+                if (!Objects.equals(values[v++], systemProperties.get(key))) return false;
+            }
+        }
+        if (projectKeys.length > 0) {
+            Map<String, String> projectProperties = pContext.getProjectProperties();
+            for (String key : projectKeys)
+                if (!Objects.equals(values[v++], projectProperties == null ? null : projectProperties.get(key)))
+                    return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+package com.diamondq.maven.activator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compiles [DIAMONDQ] activation scripts into {@link Expression} trees. Compiled trees are cached by script text, so
+ * each distinct script is only ever parsed once no matter how many modules or contexts evaluate it. Scripts that only
+ * differ in spacing or keyword case compile to the same instance (keyed by the normalized text), so a sub-expression
+ * that is shared by several profiles can be recognized by identity.
+ * <p>
+ * In a long-running process every edit of a script adds another entry, so the caches are cleared once they reach a
+ * limit (the scripts in use are simply compiled again).
+ */
+public class ScriptParser {
+
+    private static final int MAX_SCRIPTS = 10_000;
+
+    /**
+     * Compiled scripts keyed by the script text
+     */
+    private final ConcurrentMap<String, Expression> compiledScripts = new ConcurrentHashMap<>();
+
+    /**
+     * Compiled scripts keyed by their normalized text (see {@link Expression#toString()})
+     */
+    private final ConcurrentMap<String, Expression> normalizedScripts = new ConcurrentHashMap<>();
+
+    /**
+     * Compiled scripts wrapped with the automatic skip check, keyed by profile id and compiled script (the same id may
+     * have a different script in each module)
+     */
+    private final ConcurrentMap<GuardKey, Expression.And> guardedScripts = new ConcurrentHashMap<>();
+
+    private static final class GuardKey {
+        final String profileId;
+        final Expression body;
+
+        GuardKey(String pProfileId, Expression pBody) {
+            profileId = pProfileId;
+            body = pBody;
+        }
+
+        /**
+         * The compiled scripts are unique by normalized text, so they are compared by identity
+         */
+        @Override
+        public boolean equals(Object pOther) {
+            if (!(pOther instanceof GuardKey)) return false;
+            GuardKey other = (GuardKey) pOther;
+            return (body == other.body) && profileId.equals(other.profileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return profileId.hashCode() * 31 + System.identityHashCode(body);
+        }
+    }
+
+    /**
+     * Returns the compiled form of a profile's script, including the automatic
+     * <code>not(property(skip&lt;id&gt;=true))</code> check
+     *
+     * @param pProfileId the profile id
+     * @param pScript the script
+     * @return the compiled expression
+     */
+    public Expression compileProfile(String pProfileId, String pScript) {
+        Expression body = compile(pScript);
+        GuardKey key = new GuardKey(pProfileId, body);
+        Expression.And guarded = guardedScripts.get(key);
+        if (guarded == null) {
+            if (guardedScripts.size() >= MAX_SCRIPTS) guardedScripts.clear();
+            guarded = new Expression.And(Arrays.asList(new Expression.Not(
+                    new Expression.PropertyCheck("skip" + pProfileId, "true", false)), body));
+            Expression.And existing = guardedScripts.putIfAbsent(key, guarded);
+            if (existing != null) guarded = existing;
+        }
+        return guarded;
+    }
+
+    /**
+     * Returns the compiled form of a script
+     *
+     * @param pScript the script
+     * @return the compiled expression
+     */
+    public Expression compile(String pScript) {
+        Expression result = compiledScripts.get(pScript);
+        if (result == null) {
+            if (compiledScripts.size() >= MAX_SCRIPTS) {
+                compiledScripts.clear();
+                normalizedScripts.clear();
+            }
+            result = parse(pScript);
+            if (!(result instanceof Expression.Invalid)) {
+                Expression normalized = normalizedScripts.putIfAbsent(result.toString(), result);
+                if (normalized != null) result = normalized;
+            }
+            Expression existing = compiledScripts.putIfAbsent(pScript, result);
+            if (existing != null) result = existing;
+        }
+        return result;
+    }
+
+    /**
+     * Discards every compiled script
+     */
+    public void clear() {
+        compiledScripts.clear();
+        normalizedScripts.clear();
+        guardedScripts.clear();
+    }
+
+    private Expression parse(String pScript) {
+
+        /* Look for the first opening bracket and the matching end bracket */
+
+        int offset = pScript.indexOf('(');
+        int endOffset = pScript.lastIndexOf(')');
+        if ((offset == -1) || (endOffset < offset)) return new Expression.Invalid(pScript, "Unable to parse script");
+
+        /* Get the keyword and args */
+
+        String keyword = pScript.substring(0, offset).trim();
+        String args = pScript.substring(offset + 1, endOffset).trim();
+
+        /* Handle the keyword */
+
+        if ("or".equalsIgnoreCase(keyword)) return new Expression.Or(compileAll(splitArgs(args)));
+        else if ("and".equalsIgnoreCase(keyword)) return new Expression.And(compileAll(splitArgs(args)));
+        else if ("not".equalsIgnoreCase(keyword)) return new Expression.Not(compileChild(args));
+        else if ("profile".equalsIgnoreCase(keyword)) return new Expression.ProfileCheck(args);
+        else if ("file".equalsIgnoreCase(keyword)) return new Expression.FileCheck(args, true);
+        else if ("missing".equalsIgnoreCase(keyword)) return new Expression.FileCheck(args, false);
+        else if ("property".equalsIgnoreCase(keyword)) return parseProperty(args);
+        else if ("type".equalsIgnoreCase(keyword)) return new Expression.TypeCheck(args);
+        else if ("jdk".equalsIgnoreCase(keyword)) return parseJdk(pScript, args);
+        else return new Expression.Invalid(pScript, "Unrecognized script keyword \"" + keyword + "\"");
+    }
+
+    private List<Expression> compileAll(List<String> pScripts) {
+        List<Expression> result = new ArrayList<>(pScripts.size());
+        for (String script : pScripts)
+            result.add(compileChild(script));
+        return result;
+    }
+
+    /**
+     * Compiles a sub-expression. If it has already been compiled, then it is now part of more than one script.
+     *
+     * @param pScript the script
+     * @return the compiled expression
+     */
+    private Expression compileChild(String pScript) {
+        Expression result = compiledScripts.get(pScript);
+        if (result != null) {
+            result.shared = true;
+            return result;
+        }
+        result = parse(pScript);
+        if (!(result instanceof Expression.Invalid)) {
+            Expression normalized = normalizedScripts.putIfAbsent(result.toString(), result);
+            if (normalized != null) {
+                normalized.shared = true;
+                result = normalized;
+            }
+        }
+        Expression existing = compiledScripts.putIfAbsent(pScript, result);
+        return existing != null ? existing : result;
+    }
+
+    private Expression parseProperty(String pArgs) {
+
+        /* See if there is a = operator */
+
+        int eqOffset = pArgs.indexOf('=');
+        String propValue;
+        String propKey;
+        if (eqOffset == -1) {
+            propKey = pArgs;
+            propValue = null;
+        } else {
+            propKey = pArgs.substring(0, eqOffset).trim();
+            propValue = pArgs.substring(eqOffset + 1).trim();
+        }
+
+        /* Check if the ! is present in the key */
+
+        boolean reverse;
+        if (propKey.startsWith("!")) {
+            reverse = true;
+            propKey = propKey.substring(1);
+        } else reverse = false;
+
+        return new Expression.PropertyCheck(propKey, propValue, reverse);
+    }
+
+    private Expression parseJdk(String pScript, String pArgs) {
+        int operator;
+        String version;
+        if (pArgs.startsWith("<=") || pArgs.startsWith("=<")) {
+            operator = Expression.JdkCheck.LE;
+            version = pArgs.substring(2);
+        } else if (pArgs.startsWith("<")) {
+            operator = Expression.JdkCheck.LT;
+            version = pArgs.substring(1);
+        } else if (pArgs.startsWith(">=") || pArgs.startsWith("=>")) {
+            operator = Expression.JdkCheck.GE;
+            version = pArgs.substring(2);
+        } else if (pArgs.startsWith(">")) {
+            operator = Expression.JdkCheck.GT;
+            version = pArgs.substring(1);
+        } else if (pArgs.startsWith("=")) {
+            operator = Expression.JdkCheck.EQ;
+            version = pArgs.substring(1);
+        } else {
+            operator = Expression.JdkCheck.EQ;
+            version = pArgs;
+        }
+        try {
+            return new Expression.JdkCheck(operator, Integer.parseInt(version.trim()));
+        } catch (NumberFormatException ex) {
+            return new Expression.Invalid(pScript, "Unable to parse the jdk version \"" + pArgs + "\"");
+        }
+    }
+
+    /**
+     * Splits the arguments of an and/or into the individual child scripts
+     *
+     * @param pArgs the arguments
+     * @return the child scripts
+     */
+    static List<String> splitArgs(String pArgs) {
+        List<String> result = new ArrayList<>();
+        char[] charArray = pArgs.toCharArray();
+        int size = charArray.length;
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < size; i++) {
+            char ch = charArray[i];
+            if (ch == '(') depth++;
+            else if (ch == ')') depth--;
+            else if ((ch == ',') && (depth == 0)) {
+                result.add(new String(charArray, start, i - start).trim());
+                start = i + 1;
+            }
+        }
+        if (depth == 0) result.add(new String(charArray, start, size - start).trim());
+        return result;
+    }
+}
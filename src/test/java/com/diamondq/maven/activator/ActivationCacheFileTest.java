@@ -0,0 +1,132 @@
+package com.diamondq.maven.activator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActivationCacheFileTest {
+
+    @TempDir
+    File tempDir;
+
+    private static String[] describe(DependencyStore pStore, int[] pIds) {
+        String[] descriptions = new String[pIds.length];
+        for (int i = 0; i < pIds.length; i++)
+            descriptions[i] = pStore.describe(pIds[i]);
+        return descriptions;
+    }
+
+    @Test
+    void resultsSurviveARoundTrip() throws IOException {
+        DependencyStore store = new DependencyStore();
+        ActivationCache cache = new ActivationCache();
+        File moduleA = new File(tempDir, "a");
+        File moduleB = new File(tempDir, "b");
+        int generation = store.getGeneration();
+        int[] depsA = {store.fileDependency("/x/pom.xml", true), store.noPrefixDependency(new File("/x/profiles"),
+                "type-war")};
+        int[] depsB = {store.javaVersionDependency(new File("/y/profiles"), 11)};
+        PropertyFingerprint fingerprint = PropertyFingerprint.of(new String[]{"ci"}, new String[]{"module.type"},
+                SelectorFixture.context(moduleA, SelectorFixture.properties("ci", "true"),
+                        SelectorFixture.properties()));
+        cache.put(moduleA, "one", "and(property(ci), file(pom.xml))", fingerprint, true, depsA, generation);
+        cache.put(moduleB, "one", "jdk(11)", null, false, depsB, generation);
+        cache.put(moduleB, "plain", null, null, true, new int[0], generation);
+
+        File file = new File(tempDir, "cache/activation.cache");
+        assertEquals(3, ActivationCacheFile.save(file, cache, store));
+        assertTrue(file.isFile());
+        String[] leftovers = file.getParentFile().list();
+        assertArrayEquals(new String[]{"activation.cache"}, leftovers);
+
+        DependencyStore loadedStore = new DependencyStore();
+        ActivationCache loadedCache = new ActivationCache();
+        assertEquals(3, ActivationCacheFile.load(file, loadedCache, loadedStore));
+        assertEquals(3, loadedCache.size());
+
+        ActivationCache.Entry a = loadedCache.get(moduleA, "one");
+        assertTrue(a.active);
+        assertEquals("and(property(ci), file(pom.xml))", a.script);
+        assertArrayEquals(new String[]{"ci"}, a.properties.keys);
+        assertArrayEquals(new String[]{"module.type"}, a.properties.projectKeys);
+        assertArrayEquals(new String[]{"true", null, null}, a.properties.values);
+        assertTrue(a.matchesProperties(SelectorFixture.context(moduleA, SelectorFixture.properties("ci", "true"),
+                SelectorFixture.properties())));
+        assertFalse(a.matchesProperties(SelectorFixture.context(moduleA, SelectorFixture.properties("ci", "false"),
+                SelectorFixture.properties())));
+        assertArrayEquals(describe(store, depsA), describe(loadedStore, a.dependencies));
+        assertEquals(loadedStore.getGeneration(), a.generation);
+
+        ActivationCache.Entry b = loadedCache.get(moduleB, "one");
+        assertFalse(b.active);
+        assertNull(b.properties);
+        assertArrayEquals(describe(store, depsB), describe(loadedStore, b.dependencies));
+
+        ActivationCache.Entry plain = loadedCache.get(moduleB, "plain");
+        assertNull(plain.script);
+        assertEquals(0, plain.dependencies.length);
+    }
+
+    @Test
+    void resultsOfOtherGenerationsAreNotSaved() throws IOException {
+        DependencyStore store = new DependencyStore();
+        ActivationCache cache = new ActivationCache();
+        int generation = store.getGeneration();
+        cache.put(tempDir, "old", "file(x)", null, true, new int[]{store.fileDependency("/x", true)}, generation);
+        store.clear();
+        cache.put(tempDir, "new", "file(y)", null, true, new int[]{store.fileDependency("/y", true)},
+                store.getGeneration());
+
+        File file = new File(tempDir, "activation.cache");
+        assertEquals(1, ActivationCacheFile.save(file, cache, store));
+        ActivationCache loadedCache = new ActivationCache();
+        ActivationCacheFile.load(file, loadedCache, new DependencyStore());
+        assertNull(loadedCache.get(tempDir, "old"));
+        assertEquals("file(y)", loadedCache.get(tempDir, "new").script);
+    }
+
+    @Test
+    void otherVersionsAreRejected() throws IOException {
+        DependencyStore store = new DependencyStore();
+        ActivationCache cache = new ActivationCache();
+        cache.put(tempDir, "one", "file(x)", null, true, new int[]{store.fileDependency("/x", true)},
+                store.getGeneration());
+        File file = new File(tempDir, "activation.cache");
+        ActivationCacheFile.save(file, cache, store);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            int version = raf.readInt();
+            raf.seek(4);
+            raf.writeInt(version + 1);
+        }
+        ActivationCache loadedCache = new ActivationCache();
+        IOException ex = assertThrows(IOException.class,
+                () -> ActivationCacheFile.load(file, loadedCache, new DependencyStore()));
+        assertTrue(ex.getMessage().contains("version"));
+        assertEquals(0, loadedCache.size());
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        File file = new File(tempDir, "activation.cache");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file.toPath()))) {
+            out.writeInt(0x12345678);
+            out.writeInt(1);
+        }
+        assertThrows(IOException.class,
+                () -> ActivationCacheFile.load(file, new ActivationCache(), new DependencyStore()));
+    }
+}
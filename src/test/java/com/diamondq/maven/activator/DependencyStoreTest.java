@@ -0,0 +1,138 @@
+package com.diamondq.maven.activator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DependencyStoreTest {
+
+    @TempDir
+    File tempDir;
+
+    private static String[] describe(DependencyStore pStore, int[] pIds) {
+        String[] descriptions = new String[pIds.length];
+        for (int i = 0; i < pIds.length; i++)
+            descriptions[i] = pStore.describe(pIds[i]);
+        return descriptions;
+    }
+
+    @Test
+    void compactionKeepsTheDependenciesOfEachResult() {
+        DependencyStore store = new DependencyStore();
+        ActivationCache cache = new ActivationCache();
+        File dir = new File(tempDir, "module");
+
+        /* Dependencies of evicted results come first, so that every kept id moves */
+
+        int dropped1 = store.fileDependency("/dropped/1", true);
+        int dropped2 = store.noPrefixDependency(new File("/dropped"), "x");
+        int exists = store.fileDependency("/kept/a", true);
+        int missing = store.fileDependency("/kept/b", false);
+        int noPrefix = store.noPrefixDependency(new File("/kept"), "p");
+        int javaVersion = store.javaVersionDependency(new File("/kept/profiles"), 17);
+        int generation = store.getGeneration();
+
+        int[] deps1 = {exists, noPrefix};
+        int[] deps2 = {missing, javaVersion, exists};
+        int[] deps3 = {javaVersion};
+        cache.put(dir, "one", "file(a)", null, true, deps1, generation);
+        cache.put(dir, "two", "missing(b)", null, false, deps2, generation);
+        cache.put(new File(tempDir, "other"), "one", "jdk(17)", null, true, deps3, generation);
+        String[] expected1 = describe(store, deps1);
+        String[] expected2 = describe(store, deps2);
+        String[] expected3 = describe(store, deps3);
+
+        BitSet keep = cache.getDependencies(generation);
+        assertEquals(4, keep.cardinality());
+        int[] newIds = store.compact(generation, keep);
+        assertNotNull(newIds);
+        assertEquals(-1, newIds[dropped1]);
+        assertEquals(-1, newIds[dropped2]);
+        assertEquals(4, store.size());
+        int newGeneration = store.getGeneration();
+        assertNotEquals(generation, newGeneration);
+        cache.renumber(generation, newGeneration, newIds);
+
+        ActivationCache.Entry entry1 = cache.get(dir, "one");
+        ActivationCache.Entry entry2 = cache.get(dir, "two");
+        ActivationCache.Entry entry3 = cache.get(new File(tempDir, "other"), "one");
+        assertEquals(newGeneration, entry1.generation);
+        assertArrayEquals(expected1, describe(store, entry1.dependencies));
+        assertArrayEquals(expected2, describe(store, entry2.dependencies));
+        assertArrayEquals(expected3, describe(store, entry3.dependencies));
+        assertTrue(entry1.active);
+        assertEquals("missing(b)", entry2.script);
+    }
+
+    @Test
+    void renumberEvictsResultsWithDroppedDependencies() {
+        DependencyStore store = new DependencyStore();
+        ActivationCache cache = new ActivationCache();
+        int kept = store.fileDependency("/kept", true);
+        int dropped = store.fileDependency("/dropped", true);
+        int generation = store.getGeneration();
+        cache.put(tempDir, "kept", "file(/kept)", null, true, new int[]{kept}, generation);
+        cache.put(tempDir, "old", "file(/old)", null, true, new int[0], generation - 1);
+
+        BitSet keep = new BitSet();
+        keep.set(kept);
+        int[] newIds = store.compact(generation, keep);
+        int newGeneration = store.getGeneration();
+
+        /* A result stored during the compaction that refers to a dropped dependency */
+
+        cache.put(tempDir, "stale", "file(/dropped)", null, true, new int[]{dropped}, generation);
+
+        /* A result stored since the compaction is already numbered */
+
+        int added = store.fileDependency("/added", false);
+        cache.put(tempDir, "new", "missing(/added)", null, false, new int[]{added}, newGeneration);
+
+        cache.renumber(generation, newGeneration, newIds);
+        assertNotNull(cache.get(tempDir, "kept"));
+        assertNull(cache.get(tempDir, "stale"));
+        assertNull(cache.get(tempDir, "old"));
+        assertArrayEquals(new int[]{added}, cache.get(tempDir, "new").dependencies);
+        assertEquals("missing(/added)", store.describe(cache.get(tempDir, "new").dependencies[0]));
+    }
+
+    @Test
+    void compactionOfAStaleGenerationIsIgnored() {
+        DependencyStore store = new DependencyStore();
+        store.fileDependency("/a", true);
+        int generation = store.getGeneration();
+        store.clear();
+        assertNull(store.compact(generation, new BitSet()));
+    }
+
+    @Test
+    void validationReportsTheRenumberedIds() throws IOException {
+        DependencyStore store = new DependencyStore();
+        File marker = new File(tempDir, "marker");
+        assertTrue(marker.createNewFile());
+        int dropped = store.fileDependency(new File(tempDir, "dropped"), true);
+        int kept = store.fileDependency(marker, true);
+        int generation = store.getGeneration();
+        BitSet keep = new BitSet();
+        keep.set(kept);
+        int[] newIds = store.compact(generation, keep);
+        assertEquals(-1, newIds[dropped]);
+
+        assertTrue(store.validate(new FileSystemSnapshot()).isEmpty());
+        assertTrue(marker.delete());
+        BitSet failed = store.validate(new FileSystemSnapshot());
+        assertEquals(1, failed.cardinality());
+        assertTrue(failed.get(newIds[kept]));
+        assertEquals("exists(" + marker.getPath() + ")", store.describe(newIds[kept]));
+    }
+}
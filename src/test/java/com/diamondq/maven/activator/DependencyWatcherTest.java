@@ -0,0 +1,54 @@
+package com.diamondq.maven.activator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DependencyWatcherTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void watchesOfDroppedDependenciesAreCancelled() throws IOException {
+        File keptDir = new File(tempDir, "kept");
+        File droppedDir = new File(tempDir, "dropped");
+        File profilesDir = new File(tempDir, "module/profiles");
+        assertTrue(keptDir.mkdirs());
+        assertTrue(droppedDir.mkdirs());
+        assertTrue(profilesDir.mkdirs());
+
+        DependencyStore store = new DependencyStore();
+        int kept = store.fileDependency(new File(keptDir, "marker"), false);
+        store.fileDependency(new File(droppedDir, "marker"), false);
+        int prefix = store.noPrefixDependency(profilesDir, "type-war");
+        try (DependencyWatcher watcher = new DependencyWatcher()) {
+            assertTrue(watcher.watch(keptDir));
+            assertTrue(watcher.watch(droppedDir));
+            assertTrue(watcher.watch(profilesDir));
+            assertEquals(0, watcher.retain(store));
+
+            BitSet keep = new BitSet();
+            keep.set(kept);
+            keep.set(prefix);
+            store.compact(store.getGeneration(), keep);
+            assertEquals(1, watcher.retain(store));
+            assertTrue(watcher.getStatistics().startsWith("Watcher: 2 directories"));
+
+            store.clear();
+            assertEquals(2, watcher.retain(store));
+            assertTrue(watcher.getStatistics().startsWith("Watcher: 0 directories"));
+
+            /* A directory can be watched again */
+
+            assertTrue(watcher.watch(keptDir));
+            assertTrue(watcher.getStatistics().startsWith("Watcher: 1 directories"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Profile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExpressionTest {
+
+    @TempDir
+    File tempDir;
+
+    private static final String[] SCRIPTS = {
+            "and(file(pom.xml), type(java), property(ci))",
+            "or(profile(shared), missing(src), property(!ci))",
+            "and(property(release=true), or(type(war), file(src/main/java)))",
+            "or(type(java), bogus(x), property(ci))",
+            "and(type(java), noparen, jdk(>=8), property(ci))",
+            "and(file(${dir}/pom.xml), type(java), property(ci))",
+            "or(missing(${loop}/x), profile(shared), property(release))",
+            "and(not(property(ci)), not(type(war)), jdk(<100))",
+            "and(jdk(>=abc), property(ci))",
+    };
+
+    @SuppressWarnings("unchecked")
+    private static final Map<String, String>[] PROPERTY_SETS = new Map[]{
+            SelectorFixture.properties(),
+            SelectorFixture.properties("ci", "true"),
+            SelectorFixture.properties("ci", "true", "release", "true", "dir", "."),
+            SelectorFixture.properties("release", "true", "loop", "${loop}"),
+            SelectorFixture.properties("ci", "", "dir", "${nested}", "nested", "sub"),
+    };
+
+    @Test
+    void childrenAreEvaluatedCheapestFirst() {
+        Expression.And and = (Expression.And) new ScriptParser().compile(
+                "and(profile(shared), type(java), file(pom.xml), property(ci))");
+        assertEquals("property(ci)", and.evaluationOrder[0].toString());
+        assertEquals("file(pom.xml)", and.evaluationOrder[1].toString());
+        assertEquals("type(java)", and.evaluationOrder[2].toString());
+        assertEquals("profile(shared)", and.evaluationOrder[3].toString());
+        assertEquals("profile(shared)", and.children[0].toString());
+    }
+
+    @Test
+    void childrenAreNotMovedAcrossProblems() {
+        Expression.Or or = (Expression.Or) new ScriptParser().compile(
+                "or(type(java), bogus(x), property(ci), file(${dir}/x), property(release))");
+        assertEquals("type(java)", or.evaluationOrder[0].toString());
+        assertEquals("bogus(x)", or.evaluationOrder[1].toString());
+        assertEquals("property(ci)", or.evaluationOrder[2].toString());
+        assertEquals("file(${dir}/x)", or.evaluationOrder[3].toString());
+        assertEquals("property(release)", or.evaluationOrder[4].toString());
+
+        /* Nothing to reorder */
+
+        Expression.And and = (Expression.And) new ScriptParser().compile("and(property(ci), file(x))");
+        assertSame(and.children, and.evaluationOrder);
+    }
+
+    @Test
+    void reorderingGivesTheSameResultsAndProblems() throws IOException {
+        File projectDir = new File(tempDir, "project");
+        File profilesDir = new File(projectDir, "profiles");
+        assertTrue(new File(projectDir, "src/main/java").mkdirs());
+        assertTrue(profilesDir.mkdirs());
+        assertTrue(new File(projectDir, "pom.xml").createNewFile());
+        assertTrue(new File(profilesDir, "type-java").createNewFile());
+        assertTrue(new File(profilesDir, "shared").createNewFile());
+
+        List<Profile> profiles = new ArrayList<>();
+        for (int i = 0; i < SCRIPTS.length; i++)
+            profiles.add(SelectorFixture.profile("p" + i, SCRIPTS[i]));
+
+        CommonProfileSelector written = SelectorFixture.selector();
+        CommonProfileSelector reordered = SelectorFixture.selector();
+        boolean anyActive = false;
+        boolean anyProblems = false;
+        for (Map<String, String> properties : PROPERTY_SETS) {
+            SelectorFixture.Selection expected = SelectorFixture.select(written, profiles,
+                    SelectorFixture.context(projectDir, properties,
+                            Collections.singletonMap("DiamondQProfileSelectorReorder", "false")));
+            SelectorFixture.Selection actual = SelectorFixture.select(reordered, profiles,
+                    SelectorFixture.context(projectDir, properties, Collections.emptyMap()));
+            assertEquals(expected.active, actual.active, "active profiles for " + properties);
+            assertEquals(expected.problems, actual.problems, "problems for " + properties);
+            anyActive |= !actual.active.isEmpty();
+            anyProblems |= !actual.problems.isEmpty();
+        }
+        assertTrue(anyActive);
+        assertTrue(anyProblems);
+    }
+
+    @Test
+    void costsFollowTheKindOfCheck() {
+        ScriptParser parser = new ScriptParser();
+        List<String> scripts = Arrays.asList("property(ci)", "file(x)", "type(java)", "profile(x)");
+        int previous = 0;
+        for (String script : scripts) {
+            int cost = parser.compile(script).getCost();
+            assertTrue(cost > previous, script);
+            previous = cost;
+        }
+        assertFalse(parser.compile("file(${basedir}/x)").mayReportProblems());
+        assertTrue(parser.compile("file(${dir}/x)").mayReportProblems());
+    }
+}
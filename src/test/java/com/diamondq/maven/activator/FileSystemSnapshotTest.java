@@ -0,0 +1,59 @@
+package com.diamondq.maven.activator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSystemSnapshotTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void settledDirectoriesAreIndexedOnce() throws IOException {
+        File dir = new File(tempDir, "profiles");
+        assertTrue(new File(dir, "type-jar").mkdirs());
+        long modified = (System.currentTimeMillis() - 60_000L) / 1000L * 1000L;
+        assertTrue(dir.setLastModified(modified));
+
+        FileSystemSnapshot fileSystem = new FileSystemSnapshot();
+        assertEquals("type-jar", fileSystem.index(dir).findPrefix("type-"));
+
+        /* A change that keeps the modification time isn't seen (which is the point of the index) */
+
+        assertTrue(new File(dir, "type-war").createNewFile());
+        assertTrue(new File(dir, "type-jar").delete());
+        assertTrue(dir.setLastModified(modified));
+        assertEquals("type-jar", fileSystem.index(dir).findPrefix("type-"));
+        assertEquals(1, fileSystem.getListCalls());
+
+        assertTrue(dir.setLastModified(modified + 1000L));
+        assertEquals("type-war", fileSystem.index(dir).findPrefix("type-"));
+    }
+
+    @Test
+    void recentlyModifiedDirectoriesAreListedAgain() throws IOException {
+        File dir = new File(tempDir, "profiles");
+        assertTrue(new File(dir, "type-jar").mkdirs());
+        long modified = System.currentTimeMillis() / 1000L * 1000L;
+        assertTrue(dir.setLastModified(modified));
+
+        FileSystemSnapshot fileSystem = new FileSystemSnapshot();
+        assertEquals("type-jar", fileSystem.index(dir).findPrefix("type-"));
+
+        /* A second change within the same second keeps the modification time */
+
+        assertTrue(new File(dir, "type-war").createNewFile());
+        assertTrue(new File(dir, "type-jar").delete());
+        assertTrue(dir.setLastModified(modified));
+        assertEquals("type-war", fileSystem.index(dir).findPrefix("type-"));
+        assertNull(fileSystem.index(dir).findPrefix("type-jar"));
+        assertEquals(3, fileSystem.getListCalls());
+    }
+}
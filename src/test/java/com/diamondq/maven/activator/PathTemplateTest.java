@@ -0,0 +1,107 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Profile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PathTemplateTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void plainPathsAreLiteral() {
+        PathTemplate template = PathTemplate.compile("src/main/java");
+        assertTrue(template.isLiteral());
+        assertFalse(template.complex);
+        assertFalse(template.usesBasedir);
+        assertNull(template.names);
+    }
+
+    @Test
+    void placeholdersAreSplitFromTheLiteralText() {
+        PathTemplate template = PathTemplate.compile("${basedir}/a/${dir}.txt");
+        assertFalse(template.isLiteral());
+        assertFalse(template.complex);
+        assertTrue(template.usesBasedir);
+        assertArrayEquals(new String[]{"basedir", "dir"}, template.names);
+        assertArrayEquals(new String[]{"", "/a/", ".txt"}, template.literals);
+        assertEquals("/root/a/x.txt", template.format(new String[]{"/root", "x"}));
+    }
+
+    @Test
+    void unterminatedPlaceholdersAreLiteralText() {
+        PathTemplate template = PathTemplate.compile("a/${dir");
+        assertTrue(template.isLiteral());
+
+        template = PathTemplate.compile("${a}/${b");
+        assertArrayEquals(new String[]{"a"}, template.names);
+        assertEquals("x/${b", template.format(new String[]{"x"}));
+    }
+
+    @Test
+    void nestedAndEmptyPlaceholdersAreComplex() {
+        assertTrue(PathTemplate.compile("${a${b}}/x").complex);
+        assertTrue(PathTemplate.compile("a/${}/x").complex);
+        assertFalse(PathTemplate.compile("a/${}/x").isLiteral());
+    }
+
+    @Test
+    void resolutionsAreKeptPerProjectDirectory() {
+        PathTemplate template = PathTemplate.compile("src/${dir}");
+        File first = new File(tempDir, "first");
+        File second = new File(tempDir, "second");
+        template.setAligned(first, "src/a", "/first/src/a");
+        template.setAligned(second, "src/a", "/second/src/a");
+        assertEquals("/first/src/a", template.getAligned(first, "src/a"));
+        assertEquals("/second/src/a", template.getAligned(second, "src/a"));
+        assertNull(template.getAligned(first, "src/b"));
+        template.setAligned(null, "src/a", "src/a");
+        assertNull(template.getAligned(null, "src/a"));
+    }
+
+    @Test
+    void nestedValuesFallBackToTheFullInterpolator() throws IOException {
+        File first = new File(tempDir, "first");
+        File second = new File(tempDir, "second");
+        assertTrue(new File(first, "marker").mkdirs());
+        assertTrue(second.mkdirs());
+        File projectDir = new File(tempDir, "project");
+        assertTrue(projectDir.mkdirs());
+
+        CommonProfileSelector selector = SelectorFixture.selector();
+        List<Profile> profiles = Collections.singletonList(
+                SelectorFixture.profile("nested", "file(${outer}/marker)"));
+
+        SelectorFixture.Selection selection = SelectorFixture.select(selector, profiles,
+                SelectorFixture.context(projectDir,
+                        SelectorFixture.properties("outer", "${inner}", "inner", first.getPath()),
+                        Collections.emptyMap()));
+        assertEquals(Collections.singletonList("nested"), selection.active);
+        assertEquals(Collections.emptyList(), selection.problems);
+
+        /* The nested property isn't part of the fingerprint, so the result must not be reused for a new context */
+
+        selection = SelectorFixture.select(selector, profiles, SelectorFixture.context(projectDir,
+                SelectorFixture.properties("outer", "${inner}", "inner", second.getPath()),
+                Collections.emptyMap()));
+        assertEquals(Collections.emptyList(), selection.active);
+
+        /* The simple form resolves the same path without the fallback */
+
+        selection = SelectorFixture.select(selector, profiles, SelectorFixture.context(projectDir,
+                SelectorFixture.properties("outer", first.getPath()), Collections.emptyMap()));
+        assertEquals(Collections.singletonList("nested"), selection.active);
+    }
+}
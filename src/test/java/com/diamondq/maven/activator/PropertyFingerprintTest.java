@@ -0,0 +1,74 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.profile.DefaultProfileActivationContext;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PropertyFingerprintTest {
+
+    private static final String[] KEYS = {"ci", "release"};
+    private static final String[] PROJECT_KEYS = {"module.type"};
+
+    private static DefaultProfileActivationContext context(String pCi, String pSystemCi, String pModuleType,
+                                                           String pUnrelated) {
+        DefaultProfileActivationContext context = SelectorFixture.context(new File("."),
+                pCi == null ? SelectorFixture.properties("other", pUnrelated) :
+                        SelectorFixture.properties("ci", pCi, "other", pUnrelated),
+                pSystemCi == null ? Collections.emptyMap() : SelectorFixture.properties("ci", pSystemCi));
+        Properties projectProperties = new Properties();
+        if (pModuleType != null) projectProperties.setProperty("module.type", pModuleType);
+        context.setProjectProperties(projectProperties);
+        return context;
+    }
+
+    @Test
+    void noKeysMeansNoFingerprint() {
+        assertNull(PropertyFingerprint.of(new String[0], new String[0], context("true", null, null, "a")));
+    }
+
+    @Test
+    void theSameValuesMatch() {
+        PropertyFingerprint fingerprint = PropertyFingerprint.of(KEYS, PROJECT_KEYS, context("true", "x", "jar", "a"));
+        assertTrue(fingerprint.matches(context("true", "x", "jar", "a")));
+        assertTrue(fingerprint.matches(context("true", "x", "jar", "b")));
+    }
+
+    @Test
+    void aChangedValueDoesNotMatch() {
+        PropertyFingerprint fingerprint = PropertyFingerprint.of(KEYS, PROJECT_KEYS, context("true", "x", "jar", "a"));
+        assertFalse(fingerprint.matches(context("false", "x", "jar", "a")));
+        assertFalse(fingerprint.matches(context(null, "x", "jar", "a")));
+        assertFalse(fingerprint.matches(context("true", "y", "jar", "a")));
+        assertFalse(fingerprint.matches(context("true", null, "jar", "a")));
+        assertFalse(fingerprint.matches(context("true", "x", "war", "a")));
+        assertFalse(fingerprint.matches(context("true", "x", null, "a")));
+    }
+
+    @Test
+    void theValuesAreKept() {
+        PropertyFingerprint fingerprint = PropertyFingerprint.of(KEYS, PROJECT_KEYS, context("true", "x", "jar", "a"));
+        assertArrayEquals(new String[]{"true", "x", null, null, "jar"}, fingerprint.values);
+
+        /* Only the values decide, whatever they hash to */
+
+        PropertyFingerprint other = new PropertyFingerprint(KEYS, PROJECT_KEYS,
+                new String[]{"true", "x", null, null, "war"});
+        assertFalse(other.matches(context("true", "x", "jar", "a")));
+    }
+
+    @Test
+    void missingAndEmptyValuesAreDifferent() {
+        PropertyFingerprint fingerprint = PropertyFingerprint.of(KEYS, new String[0], context("", null, null, "a"));
+        assertTrue(fingerprint.matches(context("", null, null, "a")));
+        assertFalse(fingerprint.matches(context(null, null, null, "a")));
+        assertFalse(fingerprint.matches(context(null, "", null, "a")));
+    }
+}
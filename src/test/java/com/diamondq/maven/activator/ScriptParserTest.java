@@ -0,0 +1,87 @@
+package com.diamondq.maven.activator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScriptParserTest {
+
+    @Test
+    void theSameScriptIsCompiledOnce() {
+        ScriptParser parser = new ScriptParser();
+        assertSame(parser.compile("and(property(ci), file(pom.xml))"),
+                parser.compile("and(property(ci), file(pom.xml))"));
+    }
+
+    @Test
+    void spacingAndKeywordCaseAreNormalized() {
+        ScriptParser parser = new ScriptParser();
+        Expression expression = parser.compile("and(property(ci), file(pom.xml))");
+        assertSame(expression, parser.compile("AND( property(ci),file(pom.xml) )"));
+        assertSame(expression, parser.compile("and(Property(ci), FILE(pom.xml))"));
+        assertNotSame(expression, parser.compile("and(property(ci), file(other.xml))"));
+    }
+
+    @Test
+    void childrenOfSeveralScriptsAreShared() {
+        ScriptParser parser = new ScriptParser();
+        Expression.And first = (Expression.And) parser.compile("and(type(java), property(ci))");
+        Expression type = first.children[0];
+        assertFalse(type.shared);
+
+        /* The same text */
+
+        Expression.Or second = (Expression.Or) parser.compile("or(type(java), property(release))");
+        assertSame(type, second.children[0]);
+        assertTrue(type.shared);
+
+        /* The same normalized text */
+
+        Expression.Not third = (Expression.Not) parser.compile("not(TYPE(java))");
+        assertSame(type, third.child);
+
+        /* A child that only appears once */
+
+        assertFalse(second.children[1].shared);
+    }
+
+    @Test
+    void unparseableScriptsAreInvalid() {
+        ScriptParser parser = new ScriptParser();
+        assertInstanceOf(Expression.Invalid.class, parser.compile("noparen"));
+        assertInstanceOf(Expression.Invalid.class, parser.compile("bogus(x)"));
+        assertInstanceOf(Expression.Invalid.class, parser.compile("jdk(>=abc)"));
+        Expression.And and = (Expression.And) parser.compile("and(property(ci), bogus(x))");
+        assertInstanceOf(Expression.Invalid.class, and.children[1]);
+        assertTrue(and.mayReportProblems());
+    }
+
+    @Test
+    void profilesAreGuardedBySkipProperty() {
+        ScriptParser parser = new ScriptParser();
+        Expression.And guarded = (Expression.And) parser.compileProfile("fast", "property(ci)");
+        assertSame(parser.compile("property(ci)"), guarded.children[1]);
+        assertEquals("not(property(skipfast=true))", guarded.children[0].toString());
+        assertSame(guarded, parser.compileProfile("fast", "property(ci)"));
+    }
+
+    @Test
+    void guardsAreKeptPerProfileAndScript() {
+        ScriptParser parser = new ScriptParser();
+
+        /* The same profile id with a different script in another module */
+
+        Expression first = parser.compileProfile("fast", "property(ci)");
+        Expression second = parser.compileProfile("fast", "property(release)");
+        assertNotSame(first, second);
+        assertSame(first, parser.compileProfile("fast", "property(ci)"));
+        assertSame(second, parser.compileProfile("fast", "property(release)"));
+        assertSame(first, parser.compileProfile("fast", "PROPERTY( ci )"));
+        assertNotSame(first, parser.compileProfile("slow", "property(ci)"));
+    }
+}
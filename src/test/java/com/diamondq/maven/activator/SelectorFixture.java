@@ -0,0 +1,100 @@
+package com.diamondq.maven.activator;
+
+import org.apache.maven.model.Activation;
+import org.apache.maven.model.ActivationProperty;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.building.ModelProblemCollectorRequest;
+import org.apache.maven.model.path.DefaultPathTranslator;
+import org.apache.maven.model.profile.DefaultProfileActivationContext;
+import org.apache.maven.model.profile.activation.ProfileActivator;
+import org.apache.maven.model.profile.activation.PropertyProfileActivator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds selectors, [DIAMONDQ] profiles and contexts for the tests
+ */
+final class SelectorFixture {
+
+    private SelectorFixture() {
+    }
+
+    /**
+     * The result of a select() call
+     */
+    static final class Selection {
+        final List<String> active = new ArrayList<>();
+        final List<String> problems = new ArrayList<>();
+    }
+
+    static CommonProfileSelector selector() {
+        List<ProfileActivator> activators = new ArrayList<>();
+        activators.add(new PropertyProfileActivator());
+        return new CommonProfileSelector(activators, new ActivatorLogger() {
+            @Override
+            public void debug(String pMsg) {
+            }
+
+            @Override
+            public void error(String pMsg, Throwable pThrowable) {
+            }
+
+            @Override
+            public void info(String pMsg) {
+            }
+
+            @Override
+            public void warn(String pMsg) {
+            }
+
+            @Override
+            public boolean isDebugEnabled() {
+                return false;
+            }
+        }, new DefaultPathTranslator());
+    }
+
+    static Profile profile(String pId, String pScript) {
+        ActivationProperty property = new ActivationProperty();
+        property.setName("[DIAMONDQ]");
+        property.setValue(pScript);
+        Activation activation = new Activation();
+        activation.setProperty(property);
+        Profile profile = new Profile();
+        profile.setId(pId);
+        profile.setActivation(activation);
+        return profile;
+    }
+
+    static DefaultProfileActivationContext context(File pProjectDir, Map<String, String> pUserProperties,
+                                                   Map<String, String> pSystemProperties) {
+        DefaultProfileActivationContext context = new DefaultProfileActivationContext();
+        context.setProjectDirectory(pProjectDir);
+        context.setUserProperties(new HashMap<>(pUserProperties));
+        context.setSystemProperties(new HashMap<>(pSystemProperties));
+        context.setActiveProfileIds(Collections.emptyList());
+        context.setInactiveProfileIds(Collections.emptyList());
+        return context;
+    }
+
+    static Selection select(CommonProfileSelector pSelector, List<Profile> pProfiles,
+                            DefaultProfileActivationContext pContext) {
+        Selection selection = new Selection();
+        for (Profile profile : pSelector.select(pProfiles, pContext,
+                (ModelProblemCollectorRequest pRequest) -> selection.problems.add(pRequest.getMessage())))
+            selection.active.add(profile.getId());
+        return selection;
+    }
+
+    static Map<String, String> properties(String... pKeysAndValues) {
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < pKeysAndValues.length; i += 2)
+            properties.put(pKeysAndValues[i], pKeysAndValues[i + 1]);
+        return properties;
+    }
+}